@@ -0,0 +1,134 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.git.PerThreadRequestScope;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.util.Providers;
+import java.net.URISyntaxException;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.mockito.MockSettings;
+
+/**
+ * Creates {@link Destination} instances whose collaborators are stubs, so that benchmarks measure
+ * the code of the destination only.
+ *
+ * <p>Every project is visible and pushes are never run, so that scheduled pushes stay pending.
+ * Stubs don't record their invocations, which would otherwise grow without bound while a benchmark
+ * runs. The replication log is disabled.
+ */
+class BenchmarkDestinations {
+  private static final Logger replicationLog =
+      Logger.getLogger(ReplicationQueue.REPLICATION_LOG_NAME);
+
+  static Destination create(Config cfg, String remoteName) throws URISyntaxException {
+    replicationLog.setLevel(Level.OFF);
+
+    Injector injector = stub(Injector.class);
+    Injector child = stub(Injector.class);
+    when(injector.createChildInjector(any(Module.class))).thenReturn(child);
+    when(child.getInstance(PushOne.Factory.class)).thenReturn(BenchmarkDestinations::pushOne);
+    when(child.getInstance(PerThreadRequestScope.Scoper.class)).thenReturn(new DirectScoper());
+
+    CurrentUser user = stub(CurrentUser.class);
+    when(user.isInternalUser()).thenReturn(true);
+
+    ProjectCache projectCache = stub(ProjectCache.class);
+    when(projectCache.get(any(Project.NameKey.class)))
+        .thenAnswer(
+            invocation -> {
+              Project.NameKey name = invocation.getArgument(0);
+              ProjectState state = stub(ProjectState.class);
+              when(state.getProject()).thenReturn(Project.builder(name).build());
+              when(state.getNameKey()).thenReturn(name);
+              when(state.statePermitsRead()).thenReturn(true);
+              return Optional.of(state);
+            });
+
+    // Deep stubs are created on first use, which is not thread safe.
+    PermissionBackend permissionBackend = stub(PermissionBackend.class);
+    PermissionBackend.WithUser withUser = stub(PermissionBackend.WithUser.class);
+    when(permissionBackend.user(any())).thenReturn(withUser);
+    when(withUser.project(any())).thenReturn(stub(PermissionBackend.ForProject.class));
+
+    Destination destination =
+        new Destination(
+            injector,
+            null,
+            null,
+            permissionBackend,
+            Providers.of(user),
+            projectCache,
+            null,
+            null,
+            null,
+            DynamicItem.itemOf(EventDispatcher.class, stub(EventDispatcher.class)),
+            Providers.of(stub(ReplicationTasksStore.class)),
+            new DestinationConfiguration(new RemoteConfig(cfg, remoteName), cfg));
+
+    WorkQueue workQueue = stub(WorkQueue.class);
+    when(workQueue.createQueue(anyInt(), anyString()))
+        .thenReturn(stub(ScheduledExecutorService.class));
+    destination.start(workQueue);
+    return destination;
+  }
+
+  private static PushOne pushOne(Project.NameKey project, URIish uri) {
+    PushOne push = stub(PushOne.class);
+    when(push.getProjectNameKey()).thenReturn(project);
+    when(push.getURI()).thenReturn(uri);
+    return push;
+  }
+
+  private static <T> T stub(Class<T> type) {
+    return mock(type, settings());
+  }
+
+  private static MockSettings settings() {
+    return withSettings().stubOnly();
+  }
+
+  private static class DirectScoper implements PerThreadRequestScope.Scoper {
+    @Override
+    public <T> Callable<T> scope(Callable<T> callable) {
+      return callable;
+    }
+  }
+
+  private BenchmarkDestinations() {}
+}
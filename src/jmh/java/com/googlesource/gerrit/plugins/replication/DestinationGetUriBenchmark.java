@@ -0,0 +1,63 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.entities.Project;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the expansion of the URL of a remote for a project, done for every ref update and
+ * every configured URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DestinationGetUriBenchmark {
+  @Param({"git://mirror.example.com/${name}.git", "https://mirror.example.com/a/${name}.git"})
+  public String url;
+
+  @Param({"slash", "dash", "basenameOnly"})
+  public String remoteNameStyle;
+
+  private Destination destination;
+  private URIish template;
+  private Project.NameKey project;
+
+  @Setup
+  public void setUp() throws URISyntaxException {
+    Config cfg = new Config();
+    cfg.setString("remote", "mirror", "url", url);
+    cfg.setString("remote", "mirror", "remoteNameStyle", remoteNameStyle);
+    destination = BenchmarkDestinations.create(cfg, "mirror");
+    template = new URIish(url);
+    project = Project.nameKey("platform/external/some project");
+  }
+
+  @Benchmark
+  public URIish getURI() {
+    return destination.getURI(template, project);
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.entities.Project;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures {@link Destination#schedule} when several threads deliver ref updates to the same
+ * destination, as happens during a storm of ref updated events.
+ *
+ * <p>The pushes are never run, so that after the first ref of each project the ref is consolidated
+ * with the pending push of its URI.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class DestinationScheduleBenchmark {
+  private static final int REFS = 1024;
+
+  @Param({"1", "100"})
+  public int projects;
+
+  private Destination destination;
+  private Project.NameKey[] projectNames;
+  private URIish[] uris;
+  private String[] refs;
+
+  /** The state of a thread, which replicates refs of the projects in turn. */
+  @State(Scope.Thread)
+  public static class Delivery {
+    ReplicationState state;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+      state = new ReplicationState(PushResultProcessing.NO_OP);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws URISyntaxException {
+    Config cfg = new Config();
+    cfg.setString("remote", "mirror", "url", "git://mirror.example.com/${name}.git");
+    destination = BenchmarkDestinations.create(cfg, "mirror");
+    projectNames = new Project.NameKey[projects];
+    uris = new URIish[projects];
+    for (int i = 0; i < projects; i++) {
+      projectNames[i] = Project.nameKey("project" + i);
+      uris[i] = new URIish("git://mirror.example.com/project" + i + ".git");
+    }
+    refs = new String[REFS];
+    for (int i = 0; i < REFS; i++) {
+      refs[i] = String.format("refs/changes/%02d/%d/1", i % 100, i);
+    }
+  }
+
+  @Benchmark
+  public void schedule(Delivery delivery) {
+    int n = delivery.next++;
+    int project = n % projects;
+    destination.schedule(projectNames[project], refs[n % REFS], uris[project], delivery.state);
+  }
+}
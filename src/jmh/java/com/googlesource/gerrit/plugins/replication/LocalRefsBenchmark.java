@@ -0,0 +1,98 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the resolution of the local refs of a push by {@link PushOne}, in a repository whose
+ * refs/changes are all packed. A delta push only resolves the refs it replicates, while a push of
+ * all the refs lists all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LocalRefsBenchmark {
+  @Param({"1000000"})
+  public int refs;
+
+  private Path dir;
+  private Repository repo;
+  private List<String> delta;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("replication-benchmark");
+    repo = new FileRepositoryBuilder().setGitDir(dir.resolve("repo.git").toFile()).build();
+    repo.create(true);
+
+    List<String> names = new ArrayList<>(refs);
+    for (int change = 1; change <= refs; change++) {
+      names.add(String.format("refs/changes/%02d/%d/1", change % 100, change));
+    }
+    Collections.sort(names);
+    try (BufferedWriter packedRefs =
+        Files.newBufferedWriter(repo.getDirectory().toPath().resolve("packed-refs"), UTF_8)) {
+      packedRefs.write("# pack-refs with: peeled fully-peeled sorted \n");
+      for (int i = 0; i < names.size(); i++) {
+        packedRefs.write(String.format("%040x %s\n", i + 1, names.get(i)));
+      }
+    }
+
+    delta =
+        ImmutableList.of(
+            names.get(0), names.get(refs / 3), names.get(refs / 2), names.get(refs - 1));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    repo.close();
+    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE);
+  }
+
+  @Benchmark
+  public Map<String, Ref> allRefs() throws IOException {
+    return PushOne.allLocalRefs(repo);
+  }
+
+  @Benchmark
+  public Map<String, Ref> deltaRefs() throws IOException {
+    return PushOne.deltaLocalRefs(repo, delta);
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the matching of refs against the push RefSpecs of a remote, done by {@link PushOne}
+ * for every ref of a push, by trying each RefSpec in turn and with a {@link RefSpecMatcher}.
+ *
+ * <p>The refs/changes RefSpec is the last one, so that matching a change ref tries every other
+ * RefSpec first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RefSpecMatchBenchmark {
+  @Param({"1", "10", "100"})
+  public int refSpecs;
+
+  private List<RefSpec> specs;
+  private RefSpecMatcher sources;
+  private RefSpecMatcher destinations;
+
+  @Setup
+  public void setUp() {
+    specs = new ArrayList<>(refSpecs);
+    for (int i = 1; i < refSpecs; i++) {
+      specs.add(new RefSpec(String.format("+refs/heads/team%d/*:refs/heads/team%d/*", i, i)));
+    }
+    specs.add(new RefSpec("+refs/changes/*:refs/changes/*"));
+    sources = RefSpecMatcher.forSource(specs);
+    destinations = RefSpecMatcher.forDestination(specs);
+  }
+
+  @Benchmark
+  public RefSpec matchSrc() {
+    return linearMatchSrc("refs/changes/34/1234/5");
+  }
+
+  @Benchmark
+  public RefSpec matchDst() {
+    for (RefSpec s : specs) {
+      if (s.matchDestination("refs/changes/34/1234/5")) {
+        return s.expandFromDestination("refs/changes/34/1234/5");
+      }
+    }
+    return null;
+  }
+
+  @Benchmark
+  public RefSpec noMatch() {
+    return linearMatchSrc("refs/meta/external-ids");
+  }
+
+  @Benchmark
+  public RefSpec matcherMatchSrc() {
+    return sources.match("refs/changes/34/1234/5");
+  }
+
+  @Benchmark
+  public RefSpec matcherMatchDst() {
+    return destinations.match("refs/changes/34/1234/5");
+  }
+
+  @Benchmark
+  public RefSpec matcherNoMatch() {
+    return sources.match("refs/meta/external-ids");
+  }
+
+  private RefSpec linearMatchSrc(String ref) {
+    for (RefSpec s : specs) {
+      if (s.matchSource(ref)) {
+        return s.expandFromSource(ref);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.entities.Project;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link ReplicationFilter#matches(Project.NameKey)} with a list of projects patterns of
+ * a single type, where only the last pattern matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReplicationFilterBenchmark {
+  @Param({"1", "10", "100"})
+  public int patterns;
+
+  @Param({"EXACT_MATCH", "WILDCARD", "REGEX"})
+  public ReplicationFilter.PatternType type;
+
+  private ReplicationFilter filter;
+  private Project.NameKey project;
+
+  @Setup
+  public void setUp() {
+    List<String> projects = new ArrayList<>(patterns);
+    for (int i = 0; i < patterns; i++) {
+      projects.add(pattern("team" + i));
+    }
+    filter = new ReplicationFilter(projects);
+    project = Project.nameKey(String.format("team%d/project", patterns - 1));
+  }
+
+  @Benchmark
+  public boolean matches() {
+    return filter.matches(project);
+  }
+
+  private String pattern(String team) {
+    switch (type) {
+      case REGEX:
+        return "^" + team + "/.*";
+      case WILDCARD:
+        return team + "/*";
+      case EXACT_MATCH:
+      default:
+        return team + "/project";
+    }
+  }
+}
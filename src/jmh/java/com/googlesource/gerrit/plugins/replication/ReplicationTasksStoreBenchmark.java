@@ -0,0 +1,110 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.entities.Project;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Measures the lifecycle of a task in each {@link ReplicationTasksStore} backend. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplicationTasksStoreBenchmark {
+  private static final String PROJECT = "platform/project";
+  private static final String REMOTE = "mirror";
+
+  @Param({"file", "journal", "uri", "kv"})
+  public String backend;
+
+  private final AtomicLong changes = new AtomicLong();
+  private Path dir;
+  private URIish uri;
+  private ReplicationTasksStore storage;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException, URISyntaxException {
+    dir = Files.createTempDirectory("replication-benchmark");
+    uri = new URIish("git://mirror.example.com/platform/project.git");
+    Path refUpdates = dir.resolve("ref-updates");
+    switch (backend) {
+      case "journal":
+        storage =
+            new JournalReplicationTasksStorage(
+                refUpdates, JournalReplicationTasksStorage.DEFAULT_SEGMENT_SIZE);
+        break;
+      case "uri":
+        storage = new UriReplicationTasksStorage(refUpdates);
+        break;
+      case "kv":
+        storage =
+            new KeyValueReplicationTasksStore(
+                refUpdates, KeyValueReplicationTasksStore.DEFAULT_COMPACTION_SIZE);
+        break;
+      default:
+        storage = new ReplicationTasksStorage(refUpdates);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    if (storage instanceof KeyValueReplicationTasksStore) {
+      ((KeyValueReplicationTasksStore) storage).closeStore();
+    }
+    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.RETRY);
+  }
+
+  /** Creates a task which is left waiting, as happens when a push is delayed. */
+  @Benchmark
+  public String create() {
+    return storage.create(nextUpdate());
+  }
+
+  /** Creates, starts and finishes a task, as happens for every successful push. */
+  @Benchmark
+  public void createStartFinish() {
+    ReplicateRefUpdate update = nextUpdate();
+    storage.create(update);
+    UriUpdates uriUpdates =
+        TestUriUpdates.create(
+            Project.nameKey(PROJECT), uri, REMOTE, Collections.singleton(update.ref()));
+    storage.start(uriUpdates);
+    storage.finish(uriUpdates);
+  }
+
+  private ReplicateRefUpdate nextUpdate() {
+    long change = changes.incrementAndGet();
+    return ReplicateRefUpdate.create(
+        PROJECT, String.format("refs/changes/%02d/%d/1", change % 100, change), uri, REMOTE);
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the walk of all waiting task files and the rename of one task file, with the task files
+ * spread over shard directories and with all of them in one flat directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TaskFilesLayoutBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int tasks;
+
+  @Param({"sharded", "flat"})
+  public String layout;
+
+  private Path dir;
+  private Path waiting;
+  private Path running;
+  private String[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("replication-benchmark");
+    waiting = Files.createDirectory(dir.resolve("waiting"));
+    running = Files.createDirectory(dir.resolve("running"));
+    keys = new String[tasks];
+    for (int i = 0; i < tasks; i++) {
+      keys[i] =
+          ReplicateRefUpdate.create(
+                  "platform/project",
+                  String.format("refs/changes/%02d/%d/1", i % 100, i),
+                  "git://mirror.example.com/platform/project.git",
+                  "mirror")
+              .sha1();
+      Path task = taskFile(waiting, keys[i]);
+      Files.createDirectories(taskFile(running, keys[i]).getParent());
+      Files.createDirectories(task.getParent());
+      Files.createFile(task);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.RETRY);
+  }
+
+  /** Walks all the waiting tasks, as listing them or loading the index does. */
+  @Benchmark
+  public long walk() {
+    return ReplicationTasksStorage.countFiles(waiting);
+  }
+
+  /** Starts a waiting task and moves it back to waiting, as a push and its reset do. */
+  @Benchmark
+  public void rename() throws IOException {
+    String key = keys[next++ % keys.length];
+    Path from = taskFile(waiting, key);
+    Path to = taskFile(running, key);
+    Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.move(to, from, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path taskFile(Path stateDir, String key) {
+    return "flat".equals(layout)
+        ? stateDir.resolve(key)
+        : ReplicationTasksStorage.shard(stateDir, key);
+  }
+}
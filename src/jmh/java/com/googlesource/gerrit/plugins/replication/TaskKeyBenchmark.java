@@ -0,0 +1,50 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the task keys of a storm of refs/changes updates. Each task key is used once to create
+ * the task, once to start it and once to finish it. Run with -prof gc to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TaskKeyBenchmark {
+  private int change;
+
+  @Benchmark
+  public void taskLifecycleKeys(Blackhole bh) {
+    change++;
+    ReplicateRefUpdate update =
+        ReplicateRefUpdate.create(
+            "platform/frameworks/base",
+            "refs/changes/" + (change % 100) + "/" + change + "/1",
+            "ssh://mirror.example.com:29418/platform/frameworks/base.git",
+            "mirror");
+    bh.consume(update.sha1());
+    bh.consume(update.sha1());
+    bh.consume(update.sha1());
+  }
+}
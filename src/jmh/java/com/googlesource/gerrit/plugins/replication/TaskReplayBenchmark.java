@@ -0,0 +1,79 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.RecordFormat;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the replay of a backlog of waiting tasks, as done on startup, with the task files
+ * written in each {@code replication.taskFormat}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TaskReplayBenchmark {
+  @Param({"500000"})
+  public int tasks;
+
+  @Param({"JSON", "BINARY"})
+  public RecordFormat taskFormat;
+
+  private Path dir;
+  private ReplicationTasksStorage storage;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("replication-benchmark");
+    storage = new ReplicationTasksStorage(dir.resolve("ref-updates"), true, taskFormat);
+    for (int i = 0; i < tasks; i++) {
+      storage.create(
+          ReplicateRefUpdate.create(
+              "platform/project",
+              String.format("refs/changes/%02d/%d/1", i % 100, i),
+              "git://mirror.example.com/platform/project.git",
+              "mirror"));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.RETRY);
+  }
+
+  /** Reads every waiting task. */
+  @Benchmark
+  public long streamWaiting() {
+    try (Stream<ReplicateRefUpdate> waiting = storage.streamWaiting()) {
+      return waiting.count();
+    }
+  }
+}
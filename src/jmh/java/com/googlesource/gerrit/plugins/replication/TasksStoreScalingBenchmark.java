@@ -0,0 +1,119 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.entities.Project;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures how the throughput of task lifecycles scales with the number of threads sharing one
+ * store. The file store serializes the changes of a task on a lock striped by task key, the journal
+ * serializes all of them on its monitor. Each thread works on the tasks of its own project, as the
+ * event threads and destinations of a busy server do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TasksStoreScalingBenchmark {
+  @Param({"file", "sharedFile", "journal"})
+  public String backend;
+
+  private final AtomicLong changes = new AtomicLong();
+  private Path dir;
+  private URIish uri;
+  private ReplicationTasksStore storage;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException, URISyntaxException {
+    dir = Files.createTempDirectory("replication-benchmark");
+    uri = new URIish("git://mirror.example.com/platform/project.git");
+    Path refUpdates = dir.resolve("ref-updates");
+    switch (backend) {
+      case "journal":
+        storage =
+            new JournalReplicationTasksStorage(
+                refUpdates, JournalReplicationTasksStorage.DEFAULT_SEGMENT_SIZE);
+        break;
+      case "sharedFile":
+        storage = new ReplicationTasksStorage(refUpdates, true);
+        break;
+      default:
+        storage = new ReplicationTasksStorage(refUpdates, false);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.RETRY);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void createStartFinish1() {
+    createStartFinish();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void createStartFinish4() {
+    createStartFinish();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void createStartFinish16() {
+    createStartFinish();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void createStartFinish64() {
+    createStartFinish();
+  }
+
+  private void createStartFinish() {
+    long change = changes.incrementAndGet();
+    String project = "platform/project-" + Thread.currentThread().getId();
+    ReplicateRefUpdate update =
+        ReplicateRefUpdate.create(
+            project, String.format("refs/changes/%02d/%d/1", change % 100, change), uri, "mirror");
+    storage.create(update);
+    UriUpdates uriUpdates =
+        TestUriUpdates.create(
+            Project.nameKey(project), uri, "mirror", Collections.singleton(update.ref()));
+    storage.start(uriUpdates);
+    storage.finish(uriUpdates);
+  }
+}
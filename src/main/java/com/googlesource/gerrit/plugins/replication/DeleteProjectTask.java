@@ -34,6 +34,8 @@ public class DeleteProjectTask implements Runnable {
   }
 
   private final DynamicItem<AdminApiFactory> adminApiFactory;
+  private final RemoteRefsCache remoteRefsCache;
+  private final PushedRefsCache pushedRefsCache;
   private final int id;
   private final URIish replicateURI;
   private final Project.NameKey project;
@@ -42,11 +44,15 @@ public class DeleteProjectTask implements Runnable {
   @Inject
   DeleteProjectTask(
       DynamicItem<AdminApiFactory> adminApiFactory,
+      RemoteRefsCache remoteRefsCache,
+      PushedRefsCache pushedRefsCache,
       IdGenerator ig,
       @Assisted ProjectDeletionState state,
       @Assisted URIish replicateURI,
       @Assisted Project.NameKey project) {
     this.adminApiFactory = adminApiFactory;
+    this.remoteRefsCache = remoteRefsCache;
+    this.pushedRefsCache = pushedRefsCache;
     this.id = ig.next();
     this.replicateURI = replicateURI;
     this.project = project;
@@ -57,7 +63,11 @@ public class DeleteProjectTask implements Runnable {
   public void run() {
     Optional<AdminApi> adminApi = adminApiFactory.get().create(replicateURI);
     if (adminApi.isPresent()) {
-      if (adminApi.get().deleteProject(project)) {
+      boolean deleted = adminApi.get().deleteProject(project);
+      // Even a failed deletion may have removed some of the remote refs.
+      remoteRefsCache.invalidate(replicateURI);
+      pushedRefsCache.invalidate(replicateURI);
+      if (deleted) {
         state.setSucceeded(replicateURI);
       } else {
         state.setFailed(replicateURI);
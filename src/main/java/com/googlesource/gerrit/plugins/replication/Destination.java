@@ -26,6 +26,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.AccountGroup;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.GroupReference;
@@ -116,7 +117,7 @@ public class Destination {
   private final PerThreadRequestScope.Scoper threadScoper;
   private final DestinationConfiguration config;
   private final DynamicItem<EventDispatcher> eventDispatcher;
-  private final Provider<ReplicationTasksStorage> replicationTasksStorage;
+  private final Provider<ReplicationTasksStore> replicationTasksStorage;
 
   protected enum RetryReason {
     TRANSPORT_ERROR,
@@ -146,7 +147,7 @@ public class Destination {
       ReplicationStateListeners stateLog,
       GroupIncludeCache groupIncludeCache,
       DynamicItem<EventDispatcher> eventDispatcher,
-      Provider<ReplicationTasksStorage> rts,
+      Provider<ReplicationTasksStore> rts,
       @Assisted DestinationConfiguration cfg) {
     this.eventDispatcher = eventDispatcher;
     gitManager = gitRepositoryManager;
@@ -487,7 +488,7 @@ public class Destination {
    * <p>If the reason for rescheduling is to avoid a collision with an in-flight push to the same
    * URI, we don't mark the operation as "retrying," and we schedule using the replication delay,
    * rather than the retry delay. Otherwise, the operation is marked as "retrying" and scheduled to
-   * run following the minutes count determined by class attribute retryDelay.
+   * run after the delay computed by the {@link RetryPolicy} of the remote for its retry count.
    *
    * <p>In case the PushOp instance to be scheduled has same URI than one marked as "retrying," it
    * adds to the one pending the refs list of the parameter instance.
@@ -553,7 +554,10 @@ public class Destination {
           case COLLISION:
             @SuppressWarnings("unused")
             ScheduledFuture<?> ignored =
-                pool.schedule(pushOp, config.getRescheduleDelay(), TimeUnit.SECONDS);
+                pool.schedule(
+                    pushOp,
+                    config.getRetryPolicy().rescheduleDelaySeconds(config.getRescheduleDelay()),
+                    TimeUnit.SECONDS);
             break;
           case TRANSPORT_ERROR:
           case REPOSITORY_MISSING:
@@ -566,9 +570,15 @@ public class Destination {
             if (pushOp.setToRetry()) {
               postReplicationScheduledEvent(pushOp);
               replicationTasksStorage.get().reset(pushOp);
+              long retryDelay =
+                  config
+                      .getRetryPolicy()
+                      .retryDelaySeconds(pushOp.getRetryCount(), pushOp.getRetryDelay());
+              pushOp.setRetryDelay(retryDelay);
+              repLog.atInfo().log(
+                  "Retry %d of the push to %s in %ds", pushOp.getRetryCount(), uri, retryDelay);
               @SuppressWarnings("unused")
-              ScheduledFuture<?> ignored2 =
-                  pool.schedule(pushOp, config.getRetryDelay(), TimeUnit.MINUTES);
+              ScheduledFuture<?> ignored2 = pool.schedule(pushOp, retryDelay, TimeUnit.SECONDS);
             } else {
               pushOp.canceledByReplication();
               pushOp.retryDone();
@@ -620,7 +630,11 @@ public class Destination {
   }
 
   boolean wouldPush(URIish uri, Project.NameKey project, String ref) {
-    return matches(uri, project) && wouldPushProject(project) && wouldPushRef(ref);
+    return wouldPush(uri, project) && wouldPushRef(ref);
+  }
+
+  boolean wouldPush(URIish uri, Project.NameKey project) {
+    return matches(uri, project) && wouldPushProject(project);
   }
 
   boolean wouldPushProject(Project.NameKey project) {
@@ -655,10 +669,8 @@ public class Destination {
     if (PushOne.ALL_REFS.equals(ref)) {
       return true;
     }
-    for (RefSpec s : config.getRemoteConfig().getPushRefSpecs()) {
-      if (s.matchSource(ref)) {
-        return true;
-      }
+    if (config.getPushSourceMatcher().matches(ref)) {
+      return true;
     }
     repLog.atFine().log("Skipping push of ref %s; it does not match push ref specs", ref);
     return false;
@@ -775,6 +787,26 @@ public class Destination {
     return config.getSlowLatencyThreshold();
   }
 
+  int getRemoteRefsCacheMaxAge() {
+    return config.getRemoteRefsCacheMaxAge();
+  }
+
+  int getPushBatchSize() {
+    return config.getPushBatchSize();
+  }
+
+  /** Returns the first push RefSpec whose source matches the ref, expanded for the ref. */
+  @Nullable
+  RefSpec matchPushSource(String ref) {
+    return config.getPushSourceMatcher().match(ref);
+  }
+
+  /** Returns the first push RefSpec whose destination matches the ref, expanded for the ref. */
+  @Nullable
+  RefSpec matchPushDestination(String ref) {
+    return config.getPushDestinationMatcher().match(ref);
+  }
+
   private static boolean matches(URIish uri, String urlMatch) {
     if (urlMatch == null || urlMatch.equals("") || urlMatch.equals("*")) {
       return true;
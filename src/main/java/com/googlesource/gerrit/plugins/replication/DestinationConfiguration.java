@@ -30,6 +30,7 @@ public class DestinationConfiguration implements RemoteConfiguration {
   private final int delay;
   private final int rescheduleDelay;
   private final int retryDelay;
+  private final RetryPolicy retryPolicy;
   private final int drainQueueAttempts;
   private final int updateRefErrorMaxRetries;
   private final ImmutableList<String> adminUrls;
@@ -45,6 +46,10 @@ public class DestinationConfiguration implements RemoteConfiguration {
   private final RemoteConfig remoteConfig;
   private final int maxRetries;
   private final int slowLatencyThreshold;
+  private final int remoteRefsCacheMaxAge;
+  private final int pushBatchSize;
+  private final RefSpecMatcher pushSourceMatcher;
+  private final RefSpecMatcher pushDestinationMatcher;
 
   protected DestinationConfiguration(RemoteConfig remoteConfig, Config cfg) {
     this.remoteConfig = remoteConfig;
@@ -56,6 +61,7 @@ public class DestinationConfiguration implements RemoteConfiguration {
     projects = ImmutableList.copyOf(cfg.getStringList("remote", name, "projects"));
     adminUrls = ImmutableList.copyOf(cfg.getStringList("remote", name, "adminUrl"));
     retryDelay = Math.max(0, getInt(remoteConfig, cfg, "replicationretry", 1));
+    retryPolicy = RetryPolicy.fromConfig(cfg, name, retryDelay);
     drainQueueAttempts =
         Math.max(0, getInt(remoteConfig, cfg, "drainQueueAttempts", DEFAULT_DRAIN_QUEUE_ATTEMPTS));
     poolThreads = Math.max(0, getInt(remoteConfig, cfg, "threads", 1));
@@ -84,6 +90,22 @@ public class DestinationConfiguration implements RemoteConfiguration {
                 "slowLatencyThreshold",
                 DEFAULT_SLOW_LATENCY_THRESHOLD_SECS,
                 TimeUnit.SECONDS);
+
+    remoteRefsCacheMaxAge =
+        (int)
+            Math.max(
+                0,
+                ConfigUtil.getTimeUnit(
+                    cfg, "remote", name, "remoteRefsCacheMaxAge", 0, TimeUnit.SECONDS));
+
+    pushBatchSize =
+        Math.max(
+            0,
+            getInt(
+                remoteConfig, cfg, "pushBatchSize", cfg.getInt("replication", "pushBatchSize", 0)));
+
+    pushSourceMatcher = RefSpecMatcher.forSource(remoteConfig.getPushRefSpecs());
+    pushDestinationMatcher = RefSpecMatcher.forDestination(remoteConfig.getPushRefSpecs());
   }
 
   @Override
@@ -101,6 +123,10 @@ public class DestinationConfiguration implements RemoteConfiguration {
     return retryDelay;
   }
 
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
   public int getDrainQueueAttempts() {
     return drainQueueAttempts;
   }
@@ -173,4 +199,20 @@ public class DestinationConfiguration implements RemoteConfiguration {
   public int getSlowLatencyThreshold() {
     return slowLatencyThreshold;
   }
+
+  public int getRemoteRefsCacheMaxAge() {
+    return remoteRefsCacheMaxAge;
+  }
+
+  public int getPushBatchSize() {
+    return pushBatchSize;
+  }
+
+  RefSpecMatcher getPushSourceMatcher() {
+    return pushSourceMatcher;
+  }
+
+  RefSpecMatcher getPushDestinationMatcher() {
+    return pushDestinationMatcher;
+  }
 }
@@ -0,0 +1,704 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.ProvisionException;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A persistent store for replication tasks backed by a segmented append-only journal.
+ *
+ * <p>Instead of one file per task, every state transition is appended as a single record to the
+ * active journal segment under <replication_data>/ref-updates/journal:
+ *
+ * <p><code>
+ *   CREATE <json>     a new waiting task
+ *   START <sha1>      a waiting task moved to running
+ *   RESET <sha1>      a running task moved back to waiting
+ *   FINISH <sha1>     a running task completed
+ * </code>
+ *
+ * <p>The current state of all tasks is kept in memory and is rebuilt by replaying the latest
+ * snapshot followed by any newer segments. Once the active segment grows beyond the configured
+ * size, the live tasks are compacted into a new snapshot and the older files are removed. A
+ * partially written trailing record, left behind by a crash or a failed append, is ignored on
+ * replay; after a failed append, the journal continues in a new segment.
+ *
+ * <p>In group commit mode, creating a task only returns once its record has been forced to disk.
+ * Records appended by concurrent callers while a force is in progress are made durable together by
+ * the next one, so that a single force covers a whole batch of ref updates.
+ *
+ * <p>Unlike {@link ReplicationTasksStorage}, the journal must not be shared between several
+ * processes.
+ */
+@Singleton
+public class JournalReplicationTasksStorage extends ReplicationTasksStorage {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SUFFIX = ".log";
+  private static final Pattern JOURNAL_FILE =
+      Pattern.compile("(" + SEGMENT_PREFIX + "|" + SNAPSHOT_PREFIX + ")(\\d+)\\" + SUFFIX);
+
+  enum Op {
+    CREATE,
+    START,
+    RESET,
+    FINISH
+  }
+
+  private static class Entry {
+    final ReplicateRefUpdate update;
+    boolean waiting;
+    boolean running;
+
+    Entry(ReplicateRefUpdate update) {
+      this.update = update;
+    }
+  }
+
+  private final Gson gson;
+  private final Path journalDir;
+  private final long segmentSize;
+  private final boolean groupCommit;
+  private final Map<String, Entry> tasks = new LinkedHashMap<>();
+
+  private volatile FileChannel segment;
+  private long segmentSeq;
+  private long segmentBytes;
+
+  // Group commit: the number of records appended so far, and the number of those known to be
+  // durable. Only one caller at a time forces the journal, on behalf of every record appended
+  // before it started.
+  private final AtomicLong appended = new AtomicLong();
+  private final Object syncLock = new Object();
+  private long synced; // guarded by syncLock
+  private boolean syncing; // guarded by syncLock
+
+  @Inject
+  JournalReplicationTasksStorage(ReplicationConfig config) {
+    this(
+        config.getEventsDirectory().resolve("ref-updates"),
+        config
+            .getConfig()
+            .getLong("replication", null, "journalSegmentSize", DEFAULT_SEGMENT_SIZE),
+        config.getConfig().getBoolean("replication", "journalGroupCommit", false));
+  }
+
+  @VisibleForTesting
+  public JournalReplicationTasksStorage(Path refUpdates, long segmentSize) {
+    this(refUpdates, segmentSize, false);
+  }
+
+  @VisibleForTesting
+  public JournalReplicationTasksStorage(Path refUpdates, long segmentSize, boolean groupCommit) {
+    super(refUpdates);
+    this.journalDir = refUpdates.resolve("journal");
+    this.segmentSize = segmentSize;
+    this.groupCommit = groupCommit;
+    gson =
+        new GsonBuilder().registerTypeAdapterFactory(AutoValueTypeAdapterFactory.create()).create();
+  }
+
+  @Override
+  public String create(ReplicateRefUpdate r) {
+    createAll(Collections.singletonList(r));
+    return r.sha1();
+  }
+
+  /**
+   * Creates waiting tasks. In group commit mode, this only returns once the tasks have been forced
+   * to disk, all at once and together with the tasks created concurrently by other callers.
+   */
+  @Override
+  public void createAll(Collection<ReplicateRefUpdate> updates) {
+    // Writing to the journal from an interrupted thread would close the segment.
+    boolean interrupted = Thread.interrupted();
+    try {
+      long record = appendCreates(updates);
+      if (groupCommit && record > 0) {
+        awaitDurable(record);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Returns the number of the last record appended, or 0 if all the tasks were already waiting. */
+  private synchronized long appendCreates(Collection<ReplicateRefUpdate> updates) {
+    ensureOpen();
+    long record = 0;
+    for (ReplicateRefUpdate r : updates) {
+      String key = r.sha1();
+      Entry e = tasks.get(key);
+      if ((e != null && e.waiting) || !append(Op.CREATE, gson.toJson(r))) {
+        continue;
+      }
+      record = appended.incrementAndGet();
+      apply(Op.CREATE, key, r);
+      maybeCompact();
+    }
+    return record;
+  }
+
+  /**
+   * Waits until the record has been forced to disk. An interrupt does not cut the wait short, since
+   * the caller would then acknowledge a task which may not be durable; it is restored on return.
+   * The interrupt status is also cleared while forcing, which would otherwise close the segment.
+   */
+  private void awaitDurable(long record) {
+    boolean interrupted = Thread.interrupted();
+    try {
+      while (true) {
+        long batch;
+        FileChannel channel;
+        synchronized (syncLock) {
+          while (syncing && synced < record) {
+            try {
+              syncLock.wait();
+            } catch (InterruptedException e) {
+              interrupted = true;
+            }
+          }
+          if (synced >= record) {
+            return;
+          }
+          syncing = true;
+          batch = appended.get();
+          channel = segment;
+        }
+
+        boolean forced = force(channel);
+        synchronized (syncLock) {
+          syncing = false;
+          if (forced) {
+            synced = Math.max(synced, batch);
+          }
+          syncLock.notifyAll();
+        }
+        if (!forced) {
+          return;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static boolean force(FileChannel channel) {
+    if (channel == null) {
+      // The segment is being replaced; it was forced before being closed.
+      return true;
+    }
+    try {
+      channel.force(false);
+      return true;
+    } catch (ClosedChannelException e) {
+      // The segment was forced before being closed.
+      return true;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Couldn't force journal to disk");
+      return false;
+    }
+  }
+
+  @Override
+  public synchronized Set<String> start(UriUpdates uriUpdates) {
+    ensureOpen();
+    Set<String> startedRefs = new HashSet<>();
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      if (transition(Op.START, update.sha1())) {
+        startedRefs.add(update.ref());
+      }
+    }
+    return startedRefs;
+  }
+
+  @Override
+  public synchronized void reset(UriUpdates uriUpdates) {
+    ensureOpen();
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      transition(Op.RESET, update.sha1());
+    }
+  }
+
+  @Override
+  public synchronized void recoverAll() {
+    close();
+    ensureOpen();
+    importLegacyTasks();
+    for (Map.Entry<String, Entry> e : new ArrayList<>(tasks.entrySet())) {
+      if (e.getValue().running) {
+        transition(Op.RESET, e.getKey());
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isWaiting(UriUpdates uriUpdates) {
+    ensureOpen();
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      Entry e = tasks.get(update.sha1());
+      if (e != null && e.waiting) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized void finish(UriUpdates uriUpdates) {
+    ensureOpen();
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      transition(Op.FINISH, update.sha1());
+    }
+  }
+
+  @Override
+  public synchronized Stream<ReplicateRefUpdate> streamWaiting() {
+    ensureOpen();
+    List<ReplicateRefUpdate> waiting = new ArrayList<>();
+    for (Entry e : tasks.values()) {
+      if (e.waiting) {
+        waiting.add(e.update);
+      }
+    }
+    return waiting.stream();
+  }
+
+  @Override
+  public synchronized long waitingCount() {
+    ensureOpen();
+    return tasks.values().stream().filter(e -> e.waiting).count();
+  }
+
+  @Override
+  public synchronized Map<String, Long> waitingCountsByRemote() {
+    ensureOpen();
+    return countByRemote(true);
+  }
+
+  @Override
+  public synchronized Map<String, Long> runningCountsByRemote() {
+    ensureOpen();
+    return countByRemote(false);
+  }
+
+  private Map<String, Long> countByRemote(boolean waiting) {
+    Map<String, Long> counts = new HashMap<>();
+    for (Entry e : tasks.values()) {
+      if (waiting ? e.waiting : e.running) {
+        counts.merge(e.update.remote(), 1L, Long::sum);
+      }
+    }
+    return counts;
+  }
+
+  /** The journal is private to this process, so there are no tasks of other nodes to watch. */
+  @Override
+  public Optional<WaitingTasksWatcher> newWaitingTasksWatcher(
+      Consumer<ReplicateRefUpdate> listener) {
+    return Optional.empty();
+  }
+
+  @Override
+  public synchronized Stream<ReplicateRefUpdate> streamRunning() {
+    ensureOpen();
+    List<ReplicateRefUpdate> running = new ArrayList<>();
+    for (Entry e : tasks.values()) {
+      if (e.running) {
+        running.add(e.update);
+      }
+    }
+    return running.stream();
+  }
+
+  /** Closes the active segment; the next operation replays the journal from disk. */
+  @VisibleForTesting
+  synchronized void close() {
+    if (segment != null) {
+      try {
+        segment.force(false);
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Couldn't force journal segment %s", segmentSeq);
+      } finally {
+        try {
+          segment.close();
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Error while closing journal segment %s", segmentSeq);
+        }
+        segment = null;
+      }
+    }
+  }
+
+  private boolean transition(Op op, String key) {
+    Entry e = tasks.get(key);
+    if (e == null || !canApply(op, e)) {
+      return false;
+    }
+    if (append(op, key)) {
+      apply(op, key, null);
+      maybeCompact();
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean canApply(Op op, Entry e) {
+    switch (op) {
+      case START:
+        return e.waiting;
+      case RESET:
+      case FINISH:
+        return e.running;
+      case CREATE:
+      default:
+        return !e.waiting;
+    }
+  }
+
+  private void apply(Op op, String key, ReplicateRefUpdate update) {
+    Entry e = tasks.get(key);
+    if (op == Op.CREATE) {
+      if (e == null) {
+        e = new Entry(update);
+        tasks.put(key, e);
+      }
+      e.waiting = true;
+      return;
+    }
+    if (e == null || !canApply(op, e)) {
+      return;
+    }
+    switch (op) {
+      case START:
+        e.waiting = false;
+        e.running = true;
+        break;
+      case RESET:
+        e.running = false;
+        e.waiting = true;
+        break;
+      case FINISH:
+        e.running = false;
+        if (!e.waiting) {
+          tasks.remove(key);
+        }
+        break;
+      case CREATE:
+      default:
+        break;
+    }
+  }
+
+  private boolean append(Op op, String payload) {
+    ensureOpen();
+    byte[] record = (op.name() + " " + payload + "\n").getBytes(UTF_8);
+    try {
+      write(segment, record);
+      segmentBytes += record.length;
+      logger.atFine().log("JOURNAL %s %s", op, payload);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Couldn't append %s %s to journal", op, payload);
+      rollOver();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Continues the journal in a new segment after a failed append, so that the next record is not
+   * glued onto the one which may have been partially written. That one is left as the trailing
+   * record of the old segment, where it is ignored on replay.
+   */
+  @VisibleForTesting
+  synchronized void rollOver() {
+    close();
+    try {
+      openSegment(segmentSeq + 1);
+    } catch (IOException e) {
+      // The next append replays the journal and starts a new segment.
+      logger.atSevere().withCause(e).log("Couldn't open journal segment %s", segmentSeq + 1);
+    }
+  }
+
+  private void openSegment(long seq) throws IOException {
+    segmentSeq = seq;
+    segment =
+        FileChannel.open(
+            journalDir.resolve(SEGMENT_PREFIX + seq(seq) + SUFFIX),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    segmentBytes = segment.size();
+  }
+
+  private void maybeCompact() {
+    if (segmentBytes >= segmentSize) {
+      try {
+        compact();
+      } catch (IOException e) {
+        // The record is already applied; the journal is compacted again by a later append, or
+        // replayed by the next operation if the segment was closed.
+        logger.atSevere().withCause(e).log("Couldn't compact journal %s", journalDir);
+      }
+    }
+  }
+
+  private void ensureOpen() {
+    if (segment == null) {
+      replay();
+      try {
+        compact();
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Couldn't compact journal %s", journalDir);
+        try {
+          openSegment(segmentSeq + 1);
+        } catch (IOException openError) {
+          openError.addSuppressed(e);
+          throw new ProvisionException(
+              String.format("Couldn't open journal %s", journalDir), openError);
+        }
+      }
+    }
+  }
+
+  /** Rebuilds the in-memory state from the latest snapshot and the segments written after it. */
+  private void replay() {
+    tasks.clear();
+    long snapshot = -1;
+    List<Long> segments = new ArrayList<>();
+    try (Stream<Path> files = Files.list(createJournalDir())) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        Matcher m = JOURNAL_FILE.matcher(p.getFileName().toString());
+        if (!m.matches()) {
+          continue;
+        }
+        long seq = Long.parseLong(m.group(2));
+        if (SNAPSHOT_PREFIX.equals(m.group(1))) {
+          snapshot = Math.max(snapshot, seq);
+        } else {
+          segments.add(seq);
+        }
+      }
+    } catch (IOException e) {
+      throw new ProvisionException(String.format("Couldn't list journal %s", journalDir), e);
+    }
+    segments.sort(null);
+
+    segmentSeq = 0;
+    if (snapshot >= 0) {
+      replayFile(journalDir.resolve(SNAPSHOT_PREFIX + seq(snapshot) + SUFFIX));
+      segmentSeq = snapshot;
+    }
+    for (long seq : segments) {
+      if (seq > snapshot) {
+        replayFile(journalDir.resolve(SEGMENT_PREFIX + seq(seq) + SUFFIX));
+      }
+      segmentSeq = Math.max(segmentSeq, seq);
+    }
+  }
+
+  private void replayFile(Path file) {
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = reader.read()) != -1) {
+        if (c != '\n') {
+          line.append((char) c);
+          continue;
+        }
+        replayRecord(file, line.toString());
+        line.setLength(0);
+      }
+      if (line.length() > 0) {
+        logger.atWarning().log("Ignoring incomplete trailing record in %s", file);
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while replaying journal %s", file);
+    }
+  }
+
+  private void replayRecord(Path file, String record) {
+    int sp = record.indexOf(' ');
+    if (sp < 0) {
+      logger.atWarning().log("Ignoring malformed record '%s' in %s", record, file);
+      return;
+    }
+    try {
+      Op op = Op.valueOf(record.substring(0, sp));
+      String payload = record.substring(sp + 1);
+      if (op == Op.CREATE) {
+        ReplicateRefUpdate update = gson.fromJson(payload, ReplicateRefUpdate.class);
+        apply(op, update.sha1(), update);
+      } else {
+        apply(op, payload, null);
+      }
+    } catch (IllegalArgumentException | JsonParseException e) {
+      logger.atWarning().withCause(e).log("Ignoring malformed record '%s' in %s", record, file);
+    }
+  }
+
+  /**
+   * Writes the live tasks into a new snapshot, atomically replacing all older journal files, and
+   * opens a fresh segment after it.
+   */
+  private void compact() throws IOException {
+    long snapshot = segmentSeq + 1;
+    Path dir = createJournalDir();
+    Path tmp = Files.createTempFile(dir, SNAPSHOT_PREFIX, null);
+    try {
+      try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        StringBuilder records = new StringBuilder();
+        for (Entry e : tasks.values()) {
+          String json = gson.toJson(e.update);
+          String key = e.update.sha1();
+          records.append(Op.CREATE).append(' ').append(json).append('\n');
+          if (e.running) {
+            records.append(Op.START).append(' ').append(key).append('\n');
+            if (e.waiting) {
+              records.append(Op.CREATE).append(' ').append(json).append('\n');
+            }
+          }
+        }
+        write(out, records.toString().getBytes(UTF_8));
+        out.force(true);
+      }
+      Files.move(
+          tmp,
+          dir.resolve(SNAPSHOT_PREFIX + seq(snapshot) + SUFFIX),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    close();
+    openSegment(snapshot + 1);
+    logger.atFine().log("Compacted journal to %d live tasks", tasks.size());
+    // Files left behind by a failed delete are replaced by the snapshot, and removed by a later
+    // compaction.
+    deleteOlderThan(snapshot);
+  }
+
+  private void deleteOlderThan(long snapshot) throws IOException {
+    try (Stream<Path> files = Files.list(journalDir)) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        Matcher m = JOURNAL_FILE.matcher(p.getFileName().toString());
+        if (m.matches() && Long.parseLong(m.group(2)) < snapshot) {
+          Files.deleteIfExists(p);
+        }
+      }
+    }
+  }
+
+  /** Moves tasks persisted with the one file per task layout into the journal. */
+  private void importLegacyTasks() {
+    migrateFlatLayout();
+    try (Stream<ReplicateRefUpdate> waiting = super.streamWaiting()) {
+      waiting.forEach(u -> importLegacyTask(u, false));
+    }
+    try (Stream<ReplicateRefUpdate> running = super.streamRunning()) {
+      running.forEach(u -> importLegacyTask(u, true));
+    }
+  }
+
+  private void importLegacyTask(ReplicateRefUpdate update, boolean running) {
+    String key = update.sha1();
+    Entry e = tasks.get(key);
+    if (e == null || !e.waiting) {
+      if (append(Op.CREATE, gson.toJson(update))) {
+        apply(Op.CREATE, key, update);
+        maybeCompact();
+      }
+    }
+    if (running) {
+      transition(Op.START, key);
+    }
+    Task legacy = new Task(update);
+    try {
+      Files.deleteIfExists(running ? legacy.running : legacy.waiting);
+      logger.atFine().log("Imported legacy task %s into the journal", key);
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log("Couldn't delete imported legacy task %s", key);
+    }
+  }
+
+  private Path createJournalDir() {
+    try {
+      return Files.createDirectories(journalDir);
+    } catch (IOException e) {
+      throw new ProvisionException(String.format("Couldn't create %s", journalDir), e);
+    }
+  }
+
+  private static void write(FileChannel channel, byte[] bytes) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  private static String seq(long seq) {
+    return String.format("%020d", seq);
+  }
+
+  @VisibleForTesting
+  Optional<Path> activeSegment() {
+    return segment == null
+        ? Optional.empty()
+        : Optional.of(journalDir.resolve(SEGMENT_PREFIX + seq(segmentSeq) + SUFFIX));
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.ProvisionException;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A persistent store for replication tasks backed by a {@link KeyValueStore} in the single file
+ * <replication_data>/ref-updates/tasks.kv.
+ *
+ * <p>Each task is stored under the key waiting/<sha1> or running/<sha1>, in the binary format of
+ * {@link ReplicateRefUpdateCodec}. Moving a task between states deletes one key and puts the other
+ * in the same transaction, so that a task is never lost nor duplicated by a crash in the middle of
+ * a move.
+ *
+ * <p>Tasks left by {@link ReplicationTasksStorage} are imported by {@link #recoverAll()}. The store
+ * must not be shared between several processes.
+ */
+@Singleton
+public class KeyValueReplicationTasksStore implements ReplicationTasksStore {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final long DEFAULT_COMPACTION_SIZE = 8 * 1024 * 1024;
+
+  private static final String WAITING = "waiting/";
+  private static final String RUNNING = "running/";
+
+  private final Path refUpdates;
+  private final long compactionSize;
+  private final boolean forceCommits;
+  private KeyValueStore store;
+
+  @Inject
+  KeyValueReplicationTasksStore(ReplicationConfig config) {
+    this(
+        config.getEventsDirectory().resolve("ref-updates"),
+        config
+            .getConfig()
+            .getLong("replication", null, "kvCompactionSize", DEFAULT_COMPACTION_SIZE),
+        config.getConfig().getBoolean("replication", "kvForceCommits", true));
+  }
+
+  @VisibleForTesting
+  public KeyValueReplicationTasksStore(Path refUpdates, long compactionSize) {
+    this(refUpdates, compactionSize, true);
+  }
+
+  @VisibleForTesting
+  KeyValueReplicationTasksStore(Path refUpdates, long compactionSize, boolean forceCommits) {
+    this.refUpdates = refUpdates;
+    this.compactionSize = compactionSize;
+    this.forceCommits = forceCommits;
+  }
+
+  @Override
+  public synchronized String create(ReplicateRefUpdate r) {
+    String key = r.sha1();
+    if (!store().contains(WAITING + key)) {
+      commit(store().begin().put(WAITING + key, ReplicateRefUpdateCodec.encode(r)), key);
+    }
+    return key;
+  }
+
+  /** Creates the tasks in a single transaction, so that they are forced to disk at once. */
+  @Override
+  public synchronized void createAll(Collection<ReplicateRefUpdate> updates) {
+    KeyValueStore.Transaction tx = store().begin();
+    List<String> keys = new ArrayList<>();
+    for (ReplicateRefUpdate r : updates) {
+      String key = r.sha1();
+      if (!store().contains(WAITING + key)) {
+        tx.put(WAITING + key, ReplicateRefUpdateCodec.encode(r));
+        keys.add(key);
+      }
+    }
+    commit(tx, String.join(", ", keys));
+  }
+
+  @Override
+  public synchronized Set<String> start(UriUpdates uriUpdates) {
+    Set<String> startedRefs = new HashSet<>();
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      if (move(update.sha1(), WAITING, RUNNING)) {
+        startedRefs.add(update.ref());
+      }
+    }
+    return startedRefs;
+  }
+
+  @Override
+  public synchronized void reset(UriUpdates uriUpdates) {
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      move(update.sha1(), RUNNING, WAITING);
+    }
+  }
+
+  @Override
+  public synchronized void recoverAll() {
+    closeStore();
+    importLegacyTasks();
+    for (String key : keys(RUNNING)) {
+      move(key, RUNNING, WAITING);
+    }
+  }
+
+  @Override
+  public synchronized boolean isWaiting(UriUpdates uriUpdates) {
+    return uriUpdates.getReplicateRefUpdates().stream()
+        .anyMatch(update -> store().contains(WAITING + update.sha1()));
+  }
+
+  @Override
+  public synchronized void finish(UriUpdates uriUpdates) {
+    for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
+      String key = update.sha1();
+      if (store().contains(RUNNING + key)) {
+        commit(store().begin().delete(RUNNING + key), key);
+      }
+    }
+  }
+
+  @Override
+  public synchronized Stream<ReplicateRefUpdate> streamWaiting() {
+    return updates(WAITING).stream();
+  }
+
+  @Override
+  public synchronized Stream<ReplicateRefUpdate> streamRunning() {
+    return updates(RUNNING).stream();
+  }
+
+  @Override
+  public synchronized long waitingCount() {
+    return store().scan(WAITING).size();
+  }
+
+  @VisibleForTesting
+  synchronized void closeStore() {
+    if (store != null) {
+      try {
+        store.close();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Error while closing replication tasks store");
+      }
+      store = null;
+    }
+  }
+
+  /** Moves a task between states in a single transaction. */
+  private boolean move(String key, String from, String to) {
+    return store()
+        .get(from + key)
+        .map(value -> commit(store().begin().delete(from + key).put(to + key, value), key))
+        .orElse(false);
+  }
+
+  private boolean commit(KeyValueStore.Transaction tx, String key) {
+    try {
+      tx.commit();
+      return true;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while updating task %s", key);
+      return false;
+    }
+  }
+
+  private List<String> keys(String state) {
+    List<String> keys = new ArrayList<>();
+    store().scan(state).keySet().forEach(k -> keys.add(k.substring(state.length())));
+    return keys;
+  }
+
+  private List<ReplicateRefUpdate> updates(String state) {
+    List<ReplicateRefUpdate> updates = new ArrayList<>();
+    for (byte[] value : store().scan(state).values()) {
+      try {
+        updates.add(ReplicateRefUpdateCodec.decode(value));
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Error while reading a %s task", state);
+      }
+    }
+    return updates;
+  }
+
+  private void importLegacyTasks() {
+    ReplicationTasksStorage legacy = new ReplicationTasksStorage(refUpdates);
+    legacy.migrateFlatLayout();
+    List<ReplicateRefUpdate> imported = new ArrayList<>();
+    try (Stream<ReplicateRefUpdate> waiting = legacy.streamWaiting();
+        Stream<ReplicateRefUpdate> running = legacy.streamRunning()) {
+      Stream.concat(waiting, running).forEach(imported::add);
+    }
+    for (ReplicateRefUpdate update : imported) {
+      create(update);
+      ReplicationTasksStorage.Task task = legacy.new Task(update);
+      try {
+        Files.deleteIfExists(task.waiting);
+        Files.deleteIfExists(task.running);
+        logger.atFine().log("Imported legacy task %s", update.sha1());
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Couldn't delete imported legacy task %s", update);
+      }
+    }
+  }
+
+  private KeyValueStore store() {
+    if (store == null) {
+      Path file = refUpdates.resolve("tasks.kv");
+      try {
+        store = new KeyValueStore(file, compactionSize, forceCommits);
+      } catch (IOException e) {
+        throw new ProvisionException(String.format("Couldn't open %s", file), e);
+      }
+    }
+    return store;
+  }
+}
@@ -0,0 +1,299 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded key-value store kept in a single file.
+ *
+ * <p>The file is a log of transactions, each appended as one record made of its length, the CRC32
+ * of its payload and the payload itself, which lists the keys put and deleted by the transaction.
+ * The current content of the store is kept in memory and is rebuilt by replaying the log when the
+ * store is opened. Replay stops at the first record which is incomplete or does not match its
+ * checksum, so that a transaction interrupted by a crash is discarded as a whole.
+ *
+ * <p>Unless disabled, the log is forced to disk by each commit, so that a committed transaction
+ * survives a crash of the host. Once the log has grown to more than twice the size of the live
+ * data, it is compacted by writing the live data as a single transaction to a new file, which
+ * atomically replaces the log.
+ *
+ * <p>This class is not thread-safe.
+ */
+class KeyValueStore implements AutoCloseable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private final Path file;
+  private final long minCompactionSize;
+  private final boolean forceCommits;
+  private final TreeMap<String, byte[]> data = new TreeMap<>();
+  private FileChannel log;
+  private long logSize;
+  private long liveSize;
+
+  /** Changes committed atomically to the store. */
+  class Transaction {
+    private final Map<String, Optional<byte[]>> changes = new TreeMap<>();
+
+    Transaction put(String key, byte[] value) {
+      changes.put(key, Optional.of(value));
+      return this;
+    }
+
+    Transaction delete(String key) {
+      changes.put(key, Optional.empty());
+      return this;
+    }
+
+    void commit() throws IOException {
+      if (changes.isEmpty()) {
+        return;
+      }
+      append(encode(changes));
+      changes.forEach(KeyValueStore.this::apply);
+      try {
+        maybeCompact();
+      } catch (IOException e) {
+        // The transaction is committed; the log is compacted again by a later one.
+        logger.atWarning().withCause(e).log("Couldn't compact %s", file);
+      }
+    }
+  }
+
+  KeyValueStore(Path file, long minCompactionSize, boolean forceCommits) throws IOException {
+    this.file = file;
+    this.minCompactionSize = minCompactionSize;
+    this.forceCommits = forceCommits;
+    Files.createDirectories(file.getParent());
+    replay();
+  }
+
+  Transaction begin() {
+    return new Transaction();
+  }
+
+  Optional<byte[]> get(String key) {
+    return Optional.ofNullable(data.get(key));
+  }
+
+  boolean contains(String key) {
+    return data.containsKey(key);
+  }
+
+  /** Returns the entries whose key starts with the given prefix, in key order. */
+  SortedMap<String, byte[]> scan(String prefix) {
+    return Collections.unmodifiableSortedMap(data.subMap(prefix, prefix + Character.MAX_VALUE));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  private void replay() throws IOException {
+    data.clear();
+    liveSize = 0;
+    long valid = 0;
+    if (Files.exists(file)) {
+      long size = Files.size(file);
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+        while (size - valid >= RECORD_HEADER_LENGTH) {
+          int length = in.readInt();
+          int crc = in.readInt();
+          if (length < 0 || length > size - valid - RECORD_HEADER_LENGTH) {
+            break;
+          }
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          if (crc != checksum(ByteBuffer.wrap(payload))) {
+            break;
+          }
+          decode(ByteBuffer.wrap(payload)).forEach(this::apply);
+          valid += RECORD_HEADER_LENGTH + length;
+        }
+      }
+    }
+    log =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (log.size() > valid) {
+      logger.atWarning().log(
+          "Discarding %d bytes of incomplete transactions in %s", log.size() - valid, file);
+      log.truncate(valid);
+    }
+    log.position(valid);
+    logSize = valid;
+  }
+
+  private void apply(String key, Optional<byte[]> value) {
+    byte[] previous = value.isPresent() ? data.put(key, value.get()) : data.remove(key);
+    if (previous != null) {
+      liveSize -= entrySize(key, previous);
+    }
+    if (value.isPresent()) {
+      liveSize += entrySize(key, value.get());
+    }
+  }
+
+  private void append(ByteBuffer payload) throws IOException {
+    if (log == null) {
+      replay();
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.remaining());
+    record.putInt(payload.remaining()).putInt(checksum(payload.duplicate())).put(payload);
+    record.flip();
+    long start = logSize;
+    try {
+      while (record.hasRemaining()) {
+        logSize += log.write(record);
+      }
+      if (forceCommits) {
+        log.force(false);
+      }
+    } catch (IOException e) {
+      discardFrom(start, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Drops what a failed append may have written, so that the next transaction is not appended
+   * after a torn one, where replay would never reach it.
+   */
+  private void discardFrom(long offset, IOException cause) {
+    try {
+      log.truncate(offset);
+      log.position(offset);
+      logSize = offset;
+    } catch (IOException e) {
+      cause.addSuppressed(e);
+      // Reopening the log discards the torn transaction, as it is the last one.
+      try {
+        close();
+        replay();
+      } catch (IOException reopenError) {
+        // The log is reopened by the next append.
+        cause.addSuppressed(reopenError);
+      }
+    }
+  }
+
+  private void maybeCompact() throws IOException {
+    if (logSize < minCompactionSize || logSize < 2 * liveSize) {
+      return;
+    }
+    Map<String, Optional<byte[]>> live = new TreeMap<>();
+    data.forEach((k, v) -> live.put(k, Optional.of(v)));
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel compacted = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        ByteBuffer payload = encode(live);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.remaining());
+        record.putInt(payload.remaining()).putInt(checksum(payload.duplicate())).put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+          compacted.write(record);
+        }
+        compacted.force(true);
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    logger.atFine().log("Compacted %s from %d to %d bytes", file, logSize, Files.size(file));
+    close();
+    replay();
+  }
+
+  private static ByteBuffer encode(Map<String, Optional<byte[]>> changes) {
+    List<byte[]> keys = new ArrayList<>(changes.size());
+    int length = Integer.BYTES;
+    for (Map.Entry<String, Optional<byte[]>> e : changes.entrySet()) {
+      byte[] key = e.getKey().getBytes(UTF_8);
+      keys.add(key);
+      length += 1 + Integer.BYTES + key.length;
+      if (e.getValue().isPresent()) {
+        length += Integer.BYTES + e.getValue().get().length;
+      }
+    }
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.putInt(changes.size());
+    int i = 0;
+    for (Optional<byte[]> value : changes.values()) {
+      byte[] key = keys.get(i++);
+      buf.put(value.isPresent() ? PUT : DELETE).putInt(key.length).put(key);
+      if (value.isPresent()) {
+        buf.putInt(value.get().length).put(value.get());
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private static Map<String, Optional<byte[]>> decode(ByteBuffer buf) {
+    Map<String, Optional<byte[]>> changes = new TreeMap<>();
+    int count = buf.getInt();
+    for (int i = 0; i < count; i++) {
+      byte op = buf.get();
+      String key = new String(bytes(buf), UTF_8);
+      changes.put(key, op == PUT ? Optional.of(bytes(buf)) : Optional.empty());
+    }
+    return changes;
+  }
+
+  private static byte[] bytes(ByteBuffer buf) {
+    byte[] b = new byte[buf.getInt()];
+    buf.get(b);
+    return b;
+  }
+
+  private static int checksum(ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private static long entrySize(String key, byte[] value) {
+    return 1 + 2 * Integer.BYTES + key.length() + value.length;
+  }
+}
@@ -67,7 +67,7 @@ final class ListCommand extends SshCommand {
 
   private void addQueueDetails(StringBuilder out, Collection<PushOne> values) {
     for (PushOne p : values) {
-      out.append("  ").append(p.toString()).append("\n");
+      out.append("  ").append(describe(p)).append("\n");
     }
   }
 
@@ -75,12 +75,17 @@ final class ListCommand extends SshCommand {
     if (!values.isEmpty()) {
       JsonArray list = new JsonArray();
       for (PushOne p : values) {
-        list.add(new JsonPrimitive(p.toString()));
+        list.add(new JsonPrimitive(describe(p)));
       }
       obj.add(key, list);
     }
   }
 
+  private static String describe(PushOne p) {
+    String progress = p.getProgress();
+    return progress.isEmpty() ? p.toString() : p + " (" + progress + ")";
+  }
+
   private void printRemote(Destination d) {
     if (json) {
       JsonObject obj = new JsonObject();
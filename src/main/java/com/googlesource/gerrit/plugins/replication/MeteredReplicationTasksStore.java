@@ -0,0 +1,133 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Records the latency of each operation of the {@link MainReplicationTasksStore} in {@link
+ * ReplicationMetrics}.
+ *
+ * <p>Streams are read lazily by their callers, so only their creation would be measured and they
+ * are not timed.
+ */
+@Singleton
+public class MeteredReplicationTasksStore implements ReplicationTasksStore {
+  private final ReplicationTasksStore store;
+  private final ReplicationMetrics metrics;
+
+  @Inject
+  MeteredReplicationTasksStore(
+      @MainReplicationTasksStore ReplicationTasksStore store, ReplicationMetrics metrics) {
+    this.store = store;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public String create(ReplicateRefUpdate r) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("create")) {
+      return store.create(r);
+    }
+  }
+
+  @Override
+  public void createAll(Collection<ReplicateRefUpdate> updates) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("create_all")) {
+      store.createAll(updates);
+    }
+  }
+
+  @Override
+  public Set<String> start(UriUpdates uriUpdates) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("start")) {
+      return store.start(uriUpdates);
+    }
+  }
+
+  @Override
+  public void reset(UriUpdates uriUpdates) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("reset")) {
+      store.reset(uriUpdates);
+    }
+  }
+
+  @Override
+  public void recoverAll() {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("recover_all")) {
+      store.recoverAll();
+    }
+  }
+
+  @Override
+  public boolean isWaiting(UriUpdates uriUpdates) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("is_waiting")) {
+      return store.isWaiting(uriUpdates);
+    }
+  }
+
+  @Override
+  public void finish(UriUpdates uriUpdates) {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("finish")) {
+      store.finish(uriUpdates);
+    }
+  }
+
+  @Override
+  public Stream<ReplicateRefUpdate> streamWaiting() {
+    return store.streamWaiting();
+  }
+
+  @Override
+  public Stream<ReplicateRefUpdate> streamRunning() {
+    return store.streamRunning();
+  }
+
+  @Override
+  public long waitingCount() {
+    try (Timer1.Context<String> ctx = metrics.startTasksStoreOperation("waiting_count")) {
+      return store.waitingCount();
+    }
+  }
+
+  @Override
+  public Map<String, Long> waitingCountsByRemote() {
+    return store.waitingCountsByRemote();
+  }
+
+  @Override
+  public Map<String, Long> runningCountsByRemote() {
+    return store.runningCountsByRemote();
+  }
+
+  @Override
+  public long buildingCount() {
+    return store.buildingCount();
+  }
+
+  @Override
+  public Optional<WaitingTasksWatcher> newWaitingTasksWatcher(
+      Consumer<ReplicateRefUpdate> listener) {
+    return store.newWaitingTasksWatcher(listener);
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.googlesource.gerrit.plugins.replication.ReplicationQueue.repLog;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Replays the waiting tasks of the storage with several {@link ChainedScheduler} chains.
+ *
+ * <p>Waiting tasks are read in batches of a bounded size. The tasks of a batch are grouped by
+ * project and URI, so that the destinations of each group are resolved once, and the groups are
+ * shared by the chains. Progress is logged periodically along with an estimate of the remaining
+ * time.
+ */
+class PendingTasksReplay {
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /** The waiting tasks of a project to be pushed to the same URI. */
+  @AutoValue
+  abstract static class Group {
+    static Group create(String project, String uri, ImmutableList<String> refs) {
+      return new AutoValue_PendingTasksReplay_Group(project, uri, refs);
+    }
+
+    abstract String project();
+
+    abstract String uri();
+
+    abstract ImmutableList<String> refs();
+
+    @Override
+    public final String toString() {
+      return String.format("%s:%s (%d refs)", project(), uri(), refs().size());
+    }
+  }
+
+  private final Stream<ReplicateRefUpdate> waiting;
+  private final Iterator<ReplicateRefUpdate> source;
+  private final long total;
+  private final int batchSize;
+  private final ChainedScheduler.Runner<Group> runner;
+  /**
+   * Chains still running plus groups taken but not yet run. A chain runs its item after it has
+   * scheduled the next one, so the last chain may end while groups of others are still running.
+   */
+  private final AtomicInteger unfinished = new AtomicInteger();
+  private final long startNanos = System.nanoTime();
+
+  private Iterator<Group> batch = ImmutableList.<Group>of().iterator();
+  private long replayed;
+  private long lastProgressNanos = startNanos;
+
+  /**
+   * @param waiting the waiting tasks, closed once replayed.
+   * @param total the number of waiting tasks, for progress reporting.
+   */
+  PendingTasksReplay(
+      Stream<ReplicateRefUpdate> waiting,
+      long total,
+      int batchSize,
+      ChainedScheduler.Runner<Group> runner) {
+    this.waiting = waiting;
+    this.source = waiting.iterator();
+    this.total = total;
+    this.batchSize = batchSize;
+    this.runner = runner;
+  }
+
+  /** Starts replaying with the given number of chains. */
+  void start(ScheduledExecutorService threadPool, int chains) {
+    repLog.atInfo().log("Replaying %d waiting replication tasks", total);
+    unfinished.set(chains);
+    for (int i = 0; i < chains; i++) {
+      new ChainedScheduler<>(
+          threadPool,
+          new ChainIterator(),
+          new ChainedScheduler.ForwardingRunner<Group>(runner) {
+            @Override
+            public void run(Group group) {
+              try {
+                super.run(group);
+              } finally {
+                finishOne();
+              }
+            }
+
+            @Override
+            public void onDone() {
+              finishOne();
+            }
+          });
+    }
+  }
+
+  private void finishOne() {
+    if (unfinished.decrementAndGet() == 0) {
+      waiting.close();
+      repLog.atInfo().log(
+          "Replayed %d waiting replication tasks in %ds", replayed(), elapsedSeconds());
+      runner.onDone();
+    }
+  }
+
+  private synchronized Group poll() {
+    if (!batch.hasNext()) {
+      batch = readBatch();
+      if (!batch.hasNext()) {
+        return null;
+      }
+    }
+    Group group = batch.next();
+    unfinished.incrementAndGet();
+    replayed += group.refs().size();
+    logProgress();
+    return group;
+  }
+
+  private synchronized long replayed() {
+    return replayed;
+  }
+
+  private Iterator<Group> readBatch() {
+    Map<String, Map<String, List<String>>> refsByUriByProject = new LinkedHashMap<>();
+    for (int read = 0; read < batchSize && source.hasNext(); read++) {
+      ReplicateRefUpdate u = source.next();
+      refsByUriByProject
+          .computeIfAbsent(u.project(), p -> new LinkedHashMap<>())
+          .computeIfAbsent(u.uri(), uri -> new ArrayList<>())
+          .add(u.ref());
+    }
+    List<Group> groups = new ArrayList<>();
+    refsByUriByProject.forEach(
+        (project, refsByUri) ->
+            refsByUri.forEach(
+                (uri, refs) -> groups.add(Group.create(project, uri, ImmutableList.copyOf(refs)))));
+    return groups.iterator();
+  }
+
+  private void logProgress() {
+    long now = System.nanoTime();
+    if (now - lastProgressNanos < PROGRESS_INTERVAL_NANOS) {
+      return;
+    }
+    lastProgressNanos = now;
+    double perSecond = replayed / Math.max(1.0, elapsedSeconds());
+    long remaining = Math.max(0, total - replayed);
+    repLog.atInfo().log(
+        "Replayed %d of %d waiting replication tasks (%.0f/s), ETA %ds",
+        replayed, total, perSecond, (long) (remaining / Math.max(1.0, perSecond)));
+  }
+
+  private long elapsedSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Iterator of one chain. It is only accessed by one thread at a time, as required by {@link
+   * ChainedScheduler}, and takes groups from the shared batches.
+   */
+  private class ChainIterator implements Iterator<Group> {
+    private Group next;
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = poll();
+      }
+      return next != null;
+    }
+
+    @Override
+    public Group next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Group group = next;
+      next = null;
+      return group;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.googlesource.gerrit.plugins.replication.ReplicationQueue.repLog;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Keeps the transports released after a successful push open for a while, so that the next push
+ * to the same URI reuses them instead of connecting again. For SSH, this saves the TCP connection
+ * and the key exchange of every push; for HTTP, the transport keeps its cookies and authentication.
+ *
+ * <p>A transport is bound to the local repository it was opened for, so it is only reused for the
+ * same repository instance and URI. At most {@code replication.transportPoolMaxIdle} transports
+ * are kept idle per remote host, each for at most {@code replication.transportPoolIdleTimeout}.
+ * Pooling is disabled when the maximum is 0, which is the default.
+ *
+ * <p>The remote may close a connection while it is idle. When a push over a reused transport fails,
+ * the other idle transports to the same repository and URI are closed as well, so that the push
+ * can be retried over a new one. Once the plugin is stopped, released transports are closed.
+ */
+@Singleton
+public class PoolingTransportFactory implements TransportFactory, LifecycleListener {
+  static final int DEFAULT_IDLE_TIMEOUT_SEC = 30;
+
+  private static class Key {
+    final Repository local;
+    final URIish uri;
+
+    Key(Repository local, URIish uri) {
+      this.local = local;
+      this.uri = uri;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return local == k.local && uri.equals(k.uri);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(local), uri);
+    }
+  }
+
+  private static class Idle {
+    final Transport transport;
+    final long releasedAtNanos;
+
+    Idle(Transport transport, long releasedAtNanos) {
+      this.transport = transport;
+      this.releasedAtNanos = releasedAtNanos;
+    }
+  }
+
+  private final TransportFactoryImpl delegate;
+  private final ReplicationConfig replConfig;
+  private final ReplicationMetrics metrics;
+
+  private final Map<Key, Deque<Idle>> idle = new HashMap<>();
+  private final Map<String, Integer> idlePerHost = new HashMap<>();
+  private final Map<Transport, Key> leased = new IdentityHashMap<>();
+  private final Set<Transport> reused = Collections.newSetFromMap(new IdentityHashMap<>());
+  private boolean stopped;
+
+  @Inject
+  PoolingTransportFactory(
+      TransportFactoryImpl delegate, ReplicationConfig replConfig, ReplicationMetrics metrics) {
+    this.delegate = delegate;
+    this.replConfig = replConfig;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Transport open(Repository local, URIish uri)
+      throws NotSupportedException, TransportException {
+    if (getMaxIdle() <= 0 || isStopped()) {
+      return delegate.open(local, uri);
+    }
+
+    Key key = new Key(local, uri);
+    Transport tn;
+    List<Transport> expired = new ArrayList<>();
+    synchronized (this) {
+      removeExpired(expired);
+      tn = take(key);
+    }
+    closeAll(expired);
+    boolean hit = tn != null;
+    if (hit) {
+      metrics.transportPoolHit();
+    } else {
+      metrics.transportPoolMiss();
+      tn = delegate.open(local, uri);
+    }
+    synchronized (this) {
+      leased.put(tn, key);
+      if (hit) {
+        reused.add(tn);
+      }
+    }
+    return tn;
+  }
+
+  @Override
+  public synchronized boolean isReused(Transport tn) {
+    return reused.contains(tn);
+  }
+
+  @Override
+  public void release(Transport tn, boolean reusable) {
+    List<Transport> toClose = new ArrayList<>();
+    synchronized (this) {
+      Key key = leased.remove(tn);
+      boolean wasReused = reused.remove(tn);
+      removeExpired(toClose);
+      if (key != null && !reusable && wasReused) {
+        // The remote has probably closed the other idle connections as well.
+        while (idle.containsKey(key)) {
+          toClose.add(take(key));
+        }
+      }
+      if (key != null && reusable && !stopped && idleCount(key.uri) < getMaxIdle()) {
+        idle.computeIfAbsent(key, k -> new ArrayDeque<>())
+            .push(new Idle(tn, System.nanoTime()));
+        idlePerHost.merge(host(key.uri), 1, Integer::sum);
+      } else {
+        toClose.add(tn);
+      }
+    }
+    closeAll(toClose);
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    List<Transport> toClose = new ArrayList<>();
+    synchronized (this) {
+      stopped = true;
+      for (Deque<Idle> transports : idle.values()) {
+        for (Idle i : transports) {
+          toClose.add(i.transport);
+        }
+      }
+      idle.clear();
+      idlePerHost.clear();
+    }
+    closeAll(toClose);
+  }
+
+  private synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  @VisibleForTesting
+  synchronized int idleCount(URIish uri) {
+    return idlePerHost.getOrDefault(host(uri), 0);
+  }
+
+  private Transport take(Key key) {
+    Deque<Idle> transports = idle.get(key);
+    if (transports == null) {
+      return null;
+    }
+    Idle i = transports.pop();
+    if (transports.isEmpty()) {
+      idle.remove(key);
+    }
+    decrementIdle(key.uri);
+    return i.transport;
+  }
+
+  private void removeExpired(List<Transport> expired) {
+    long timeoutNanos = SECONDS.toNanos(getIdleTimeout());
+    long now = System.nanoTime();
+    for (Iterator<Map.Entry<Key, Deque<Idle>>> it = idle.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Key, Deque<Idle>> e = it.next();
+      Deque<Idle> transports = e.getValue();
+      // The most recently released transports are first.
+      while (!transports.isEmpty()
+          && now - transports.peekLast().releasedAtNanos >= timeoutNanos) {
+        expired.add(transports.removeLast().transport);
+        decrementIdle(e.getKey().uri);
+      }
+      if (transports.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private void decrementIdle(URIish uri) {
+    idlePerHost.computeIfPresent(host(uri), (h, n) -> n > 1 ? n - 1 : null);
+  }
+
+  private static String host(URIish uri) {
+    return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+  }
+
+  private static void closeAll(List<Transport> transports) {
+    for (Transport tn : transports) {
+      try {
+        tn.close();
+      } catch (RuntimeException e) {
+        repLog.atWarning().withCause(e).log("Cannot close transport to %s", tn.getURI());
+      }
+    }
+  }
+
+  private int getMaxIdle() {
+    return replConfig.getConfig().getInt("replication", "transportPoolMaxIdle", 0);
+  }
+
+  private long getIdleTimeout() {
+    Config config = replConfig.getConfig();
+    return config.getTimeUnit(
+        "replication", null, "transportPoolIdleTimeout", DEFAULT_IDLE_TIMEOUT_SEC, SECONDS);
+  }
+}
@@ -25,6 +25,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
@@ -55,7 +56,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -69,7 +69,6 @@ import org.eclipse.jgit.errors.RemoteRepositoryException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -124,6 +123,7 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
   private boolean isCollision;
   private boolean retrying;
   private int retryCount;
+  private long retryDelay;
   private final int maxRetries;
   private boolean canceled;
   private final ListMultimap<String, ReplicationState> stateMap = LinkedListMultimap.create();
@@ -136,6 +136,11 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
   private final CreateProjectTask.Factory createProjectFactory;
   private final AtomicBoolean canceledWhileRunning;
   private final TransportFactory transportFactory;
+  private final RemoteRefsCache remoteRefsCache;
+  private final PushedRefsCache pushedRefsCache;
+  private volatile PushProgressMonitor progress;
+  private int batchesPushed;
+  private PushPhases phases = new PushPhases();
   private DynamicItem<ReplicationPushFilter> replicationPushFilter;
 
   @Inject
@@ -153,6 +158,8 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
       ProjectCache pc,
       CreateProjectTask.Factory cpf,
       TransportFactory tf,
+      RemoteRefsCache rrc,
+      PushedRefsCache prc,
       @Assisted Project.NameKey d,
       @Assisted URIish u) {
     gitManager = grm;
@@ -175,6 +182,8 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
     canceledWhileRunning = new AtomicBoolean(false);
     maxRetries = p.getMaxRetries();
     transportFactory = tf;
+    remoteRefsCache = rrc;
+    pushedRefsCache = prc;
   }
 
   @Inject(optional = true)
@@ -217,11 +226,21 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
     String print = "[" + HexFormat.fromInt(id) + "] push " + uri + " " + getLimitedRefs();
 
     if (retryCount > 0) {
-      print = "(retry " + retryCount + ") " + print;
+      print = "(retry " + retryCount + " after " + retryDelay + "s) " + print;
     }
     return print;
   }
 
+  /**
+   * Returns the progress of the pack being sent, like {@code "Writing objects: 12/40"}.
+   *
+   * @return the progress of the push, or an empty string if it is not sending a pack.
+   */
+  String getProgress() {
+    PushProgressMonitor monitor = progress;
+    return monitor != null ? monitor.getStatus() : "";
+  }
+
   /**
    * Returns a string of refs limited to the maxRefsToShow config with count of total refs hidden
    * when there are more refs than maxRefsToShow config.
@@ -262,6 +281,19 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
     return maxRetries == 0 || retryCount <= maxRetries;
   }
 
+  int getRetryCount() {
+    return retryCount;
+  }
+
+  /** Returns the delay before the last retry of this push, in seconds. */
+  long getRetryDelay() {
+    return retryDelay;
+  }
+
+  void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
   void retryDone() {
     this.retrying = false;
   }
@@ -413,17 +445,22 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
 
     repLog.atInfo().log("Replication to %s started...", uri);
     Timer1.Context<String> destinationContext = metrics.start(config.getName());
+    phases = new PushPhases();
     try {
       long startedAt = destinationContext.getStartTime();
       long delay = NANOSECONDS.toMillis(startedAt - createdAt);
       metrics.record(config.getName(), delay, retryCount);
+      phases.start(PushPhases.Phase.OPEN_REPOSITORY);
       git = gitManager.openRepository(projectName);
       runImpl();
+      phases.stop();
       long elapsed = NANOSECONDS.toMillis(destinationContext.stop());
+      phases.record(metrics, config.getName());
 
       if (elapsed > SECONDS.toMillis(pool.getSlowLatencyThreshold())) {
         metrics.recordSlowProjectReplication(
             config.getName(), projectName.get(), pool.getSlowLatencyThreshold(), elapsed);
+        repLog.atInfo().log("Slow replication of %s to %s: %s", projectName, uri, phases);
       }
       retryDone();
       repLog.atInfo().log(
@@ -533,24 +570,71 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
   }
 
   private void runImpl() throws IOException, PermissionBackendException {
-    PushResult res;
-    try (Transport tn = transportFactory.open(git, uri)) {
-      res = pushVia(tn);
+    try {
+      if (!pushOverTransport(true)) {
+        pushOverTransport(false);
+      }
+    } catch (IOException | RuntimeException e) {
+      remoteRefsCache.invalidate(uri);
+      pushedRefsCache.invalidate(uri);
+      throw e;
     }
-    updateStates(res.getRemoteUpdates());
   }
 
-  private PushResult pushVia(Transport tn) throws IOException, PermissionBackendException {
+  /**
+   * Pushes over a transport from the factory.
+   *
+   * @param mayRetry whether a connection failure over a reused transport may be retried
+   * @return false if the push should be retried over a new transport, as it failed over a reused
+   *     one, which the remote had probably closed while it was idle, before any batch was pushed
+   */
+  private boolean pushOverTransport(boolean mayRetry)
+      throws IOException, PermissionBackendException {
+    phases.start(PushPhases.Phase.OPEN_TRANSPORT);
+    Transport tn = transportFactory.open(git, uri);
+    boolean reusable = false;
+    batchesPushed = 0;
+    try {
+      pushVia(tn);
+      reusable = true;
+      return true;
+    } catch (TransportException e) {
+      if (mayRetry
+          && batchesPushed == 0
+          && isConnectionFailure(e)
+          && transportFactory.isReused(tn)) {
+        repLog.atInfo().withCause(e).log(
+            "Reused connection to %s failed, retrying over a new one", uri);
+        return false;
+      }
+      throw e;
+    } finally {
+      progress = null;
+      transportFactory.release(tn, reusable);
+    }
+  }
+
+  private static boolean isConnectionFailure(TransportException e) {
+    return !(e instanceof UpdateRefFailureException
+        || e instanceof RemoteRepositoryException
+        || e instanceof NoRemoteRepositoryException);
+  }
+
+  private void pushVia(Transport tn) throws IOException, PermissionBackendException {
     tn.applyConfig(config);
     tn.setCredentialsProvider(credentialsProvider);
 
-    List<RemoteRefUpdate> todo = generateUpdates(tn);
+    PushOutcome outcome = new PushOutcome();
+    List<RemoteRefUpdate> updates = generateUpdates(tn);
+    List<RemoteRefUpdate> todo = pushAllRefs ? updates : skipPushedRefs(updates, outcome);
     if (todo.isEmpty()) {
       // If we have no commands selected, we have nothing to do.
       // Calling JGit at this point would just redo the work we
       // already did, and come up with the same answer. Instead
-      // send back an empty result.
-      return new PushResult();
+      // only report the states.
+      phases.start(PushPhases.Phase.UPDATE_STATES);
+      finishStates(outcome);
+      return;
     }
 
     if (replConfig.getMaxRefsToLog() == 0 || todo.size() <= replConfig.getMaxRefsToLog()) {
@@ -564,7 +648,67 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
           lazy(() -> refUpdatesForLogging(todo.subList(0, replConfig.getMaxRefsToLog()))));
     }
 
-    return tn.push(NullProgressMonitor.INSTANCE, todo);
+    PushProgressMonitor monitor = new PushProgressMonitor(metrics, config.getName());
+    progress = monitor;
+
+    // Each batch is a push of its own: receive-pack accepts a single push
+    // per connection, so every batch opens a new connection to the remote
+    // and reads its refs advertisement again. Its states are reported as
+    // soon as it is done, so that the refs of the batches already pushed
+    // are up to date when a later batch fails and the push is retried.
+    int batchSize = pool.getPushBatchSize();
+    List<List<RemoteRefUpdate>> batches =
+        batchSize > 0 ? Lists.partition(todo, batchSize) : Collections.singletonList(todo);
+    for (int i = 0; i < batches.size(); i++) {
+      if (i > 0 && canceledWhileRunning.get()) {
+        repLog.atInfo().log(
+            "Push to %s canceled while running, skipping its last %d batches",
+            uri, batches.size() - i);
+        break;
+      }
+      List<RemoteRefUpdate> batch = batches.get(i);
+      if (batches.size() > 1) {
+        repLog.atInfo().log(
+            "Push to %s batch %d of %d: %d references", uri, i + 1, batches.size(), batch.size());
+      }
+      phases.start(PushPhases.Phase.PUSH);
+      PushResult res = tn.push(monitor, batch);
+      batchesPushed++;
+      monitor.pushed();
+      phases.start(PushPhases.Phase.UPDATE_STATES);
+      remoteRefsCache.update(uri, res.getRemoteUpdates());
+      pushedRefsCache.update(uri, res.getRemoteUpdates());
+      updateRefStates(res.getRemoteUpdates(), outcome);
+    }
+    finishStates(outcome);
+  }
+
+  /**
+   * Drops the updates of the refs which were already pushed to the URI with the same value, and
+   * reports them as up to date.
+   */
+  private List<RemoteRefUpdate> skipPushedRefs(List<RemoteRefUpdate> todo, PushOutcome outcome) {
+    List<RemoteRefUpdate> toPush = new ArrayList<>(todo.size());
+    Set<String> notified = new HashSet<>();
+    for (RemoteRefUpdate u : todo) {
+      if (!pushedRefsCache.isPushed(uri, u)) {
+        toPush.add(u);
+        continue;
+      }
+      repLog.atFine().log("Skipping push of %s to %s, already pushed", u.getRemoteName(), uri);
+      outcome.doneRefs.add(u.getSrcRef());
+      for (ReplicationState rs : getStatesByRef(u.getSrcRef())) {
+        rs.notifyRefReplicated(
+            projectName.get(),
+            u.getSrcRef(),
+            uri,
+            RefPushResult.SUCCEEDED,
+            RemoteRefUpdate.Status.UP_TO_DATE);
+      }
+      notified.add(u.getSrcRef());
+    }
+    notified.forEach(stateMap::removeAll);
+    return toPush;
   }
 
   private static String refUpdatesForLogging(List<RemoteRefUpdate> refUpdates) {
@@ -596,13 +740,16 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
 
   private List<RemoteRefUpdate> generateUpdates(Transport tn)
       throws IOException, PermissionBackendException {
+    phases.start(PushPhases.Phase.LOCAL_REFS);
     Optional<ProjectState> projectState = projectCache.get(projectName);
     if (!projectState.isPresent()) {
       return Collections.emptyList();
     }
 
-    Map<String, Ref> local =
-        git.getRefDatabase().getRefs().stream().collect(toMap(Ref::getName, r -> r));
+    // If we aren't mirroring, only resolve the references we will
+    // update during this operation, which also reduces the space we
+    // need to filter.
+    Map<String, Ref> local = pushAllRefs ? allLocalRefs(git) : deltaLocalRefs(git, delta);
     boolean filter;
     PermissionBackend.ForProject forProject = permissionBackend.currentUser().project(projectName);
     try {
@@ -613,19 +760,6 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
       filter = true;
     }
     if (filter) {
-      if (!pushAllRefs) {
-        // If we aren't mirroring, reduce the space we need to filter
-        // to only the references we will update during this operation.
-        //
-        Map<String, Ref> n = new HashMap<>();
-        for (String src : delta) {
-          Ref r = local.get(src);
-          if (r != null) {
-            n.put(src, r);
-          }
-        }
-        local = n;
-      }
       local =
           forProject
               .filter(local.values(), git, RefFilterOptions.builder().setFilterMeta(true).build())
@@ -641,17 +775,28 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
         : replicationPushFilter.get().filter(projectName.get(), remoteUpdatesList);
   }
 
+  static Map<String, Ref> allLocalRefs(Repository git) throws IOException {
+    return git.getRefDatabase().getRefs().stream().collect(toMap(Ref::getName, r -> r));
+  }
+
+  static Map<String, Ref> deltaLocalRefs(Repository git, Collection<String> refs)
+      throws IOException {
+    return git.getRefDatabase().exactRef(refs.toArray(new String[0]));
+  }
+
   private List<RemoteRefUpdate> doPushAll(Transport tn, Map<String, Ref> local) throws IOException {
     List<RemoteRefUpdate> cmds = new ArrayList<>();
     boolean noPerms = !pool.isReplicatePermissions();
+    phases.start(PushPhases.Phase.LIST_REMOTE);
     Map<String, Ref> remote = listRemote(tn);
+    phases.start(PushPhases.Phase.LOCAL_REFS);
     for (Ref src : local.values()) {
       if (!canPushRef(src.getName(), noPerms)) {
         repLog.atFine().log("Skipping push of ref %s", src.getName());
         continue;
       }
 
-      RefSpec spec = matchSrc(src.getName());
+      RefSpec spec = pool.matchPushSource(src.getName());
       if (spec != null) {
         Ref dst = remote.get(spec.getDestination());
         if (dst == null || !src.getObjectId().equals(dst.getObjectId())) {
@@ -667,7 +812,7 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
           repLog.atFine().log("Skipping deletion of %s", ref.getName());
           continue;
         }
-        RefSpec spec = matchDst(ref.getName());
+        RefSpec spec = pool.matchPushDestination(ref.getName());
         if (spec != null && !local.containsKey(spec.getSource())) {
           // No longer on local side, request removal.
           delete(cmds, spec);
@@ -681,7 +826,7 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
     List<RemoteRefUpdate> cmds = new ArrayList<>();
     boolean noPerms = !pool.isReplicatePermissions();
     for (String src : delta) {
-      RefSpec spec = matchSrc(src);
+      RefSpec spec = pool.matchPushSource(src);
       if (spec != null) {
         // If the ref still exists locally, send it, otherwise delete it.
         Ref srcRef = local.get(src);
@@ -706,29 +851,32 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
         && !ref.startsWith(RefNames.REFS_CACHE_AUTOMERGE);
   }
 
-  private Map<String, Ref> listRemote(Transport tn)
-      throws NotSupportedException, TransportException {
-    try (FetchConnection fc = tn.openFetch()) {
-      return fc.getRefsMap();
+  private Map<String, Ref> listRemote(Transport tn) throws IOException {
+    int cacheMaxAge = pool.getRemoteRefsCacheMaxAge();
+    if (cacheMaxAge > 0) {
+      Optional<Map<String, Ref>> cached =
+          remoteRefsCache.get(uri, cacheMaxAge, prefixes -> listRemote(tn, prefixes));
+      if (cached.isPresent()) {
+        return cached.get();
+      }
     }
-  }
 
-  private RefSpec matchSrc(String ref) {
-    for (RefSpec s : config.getPushRefSpecs()) {
-      if (s.matchSource(ref)) {
-        return s.expandFromSource(ref);
-      }
+    Map<String, Ref> remote;
+    try (FetchConnection fc = tn.openFetch()) {
+      remote = fc.getRefsMap();
     }
-    return null;
+    if (cacheMaxAge > 0) {
+      remoteRefsCache.put(uri, remote);
+    }
+    return remote;
   }
 
-  private RefSpec matchDst(String ref) {
-    for (RefSpec s : config.getPushRefSpecs()) {
-      if (s.matchDestination(ref)) {
-        return s.expandFromDestination(ref);
-      }
+  private static Map<String, Ref> listRemote(Transport tn, List<String> prefixes)
+      throws NotSupportedException, TransportException {
+    try (FetchConnection fc =
+        tn.openFetch(Collections.emptyList(), prefixes.toArray(new String[0]))) {
+      return fc.getRefsMap();
     }
-    return null;
   }
 
   private void push(List<RemoteRefUpdate> cmds, RefSpec spec, Ref src) throws IOException {
@@ -743,12 +891,28 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
     cmds.add(new RemoteRefUpdate(git, (Ref) null, dst, force, null, null));
   }
 
-  private void updateStates(Collection<RemoteRefUpdate> refUpdates)
-      throws UpdateRefFailureException {
-    Set<String> doneRefs = new HashSet<>();
-    boolean anyRefFailed = false;
+  /** The outcome of the ref updates of a push, which may be sent in several batches. */
+  private static class PushOutcome {
+    final Set<String> doneRefs = new HashSet<>();
+    boolean anyRefFailed;
     RemoteRefUpdate.Status lastRefStatusError = RemoteRefUpdate.Status.OK;
+  }
 
+  private void updateRefStates(Collection<RemoteRefUpdate> refUpdates, PushOutcome outcome)
+      throws UpdateRefFailureException {
+    Set<String> notified = new HashSet<>();
+    try {
+      updateRefStates(refUpdates, outcome, notified);
+    } finally {
+      // The states of the refs already notified are dropped, so that they are not notified
+      // again when a later batch fails and the push is retried.
+      notified.forEach(stateMap::removeAll);
+    }
+  }
+
+  private void updateRefStates(
+      Collection<RemoteRefUpdate> refUpdates, PushOutcome outcome, Set<String> notified)
+      throws UpdateRefFailureException {
     for (RemoteRefUpdate u : refUpdates) {
       RefPushResult pushStatus = RefPushResult.SUCCEEDED;
       Set<ReplicationState> logStates = new HashSet<>();
@@ -757,7 +921,7 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
       logStates.addAll(stateMap.get(ALL_REFS));
       ReplicationState[] logStatesArray = logStates.toArray(new ReplicationState[logStates.size()]);
 
-      doneRefs.add(u.getSrcRef());
+      outcome.doneRefs.add(u.getSrcRef());
       switch (u.getStatus()) {
         case OK:
         case UP_TO_DATE:
@@ -774,8 +938,8 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
                   "Failed replicate of %s to %s: status %s", u.getRemoteName(), uri, u.getStatus()),
               logStatesArray);
           pushStatus = RefPushResult.FAILED;
-          anyRefFailed = true;
-          lastRefStatusError = u.getStatus();
+          outcome.anyRefFailed = true;
+          outcome.lastRefStatusError = u.getStatus();
           break;
 
         case REJECTED_OTHER_REASON:
@@ -799,27 +963,30 @@ class PushOne implements ProjectRunnable, CanceledWhileRunning, UriUpdates {
                 logStatesArray);
           }
           pushStatus = RefPushResult.FAILED;
-          anyRefFailed = true;
-          lastRefStatusError = u.getStatus();
+          outcome.anyRefFailed = true;
+          outcome.lastRefStatusError = u.getStatus();
           break;
       }
 
       for (ReplicationState rs : getStatesByRef(u.getSrcRef())) {
         rs.notifyRefReplicated(projectName.get(), u.getSrcRef(), uri, pushStatus, u.getStatus());
       }
+      notified.add(u.getSrcRef());
     }
+  }
 
-    doneRefs.add(ALL_REFS);
+  private void finishStates(PushOutcome outcome) {
+    outcome.doneRefs.add(ALL_REFS);
     for (ReplicationState rs : getStatesByRef(ALL_REFS)) {
       rs.notifyRefReplicated(
           projectName.get(),
           ALL_REFS,
           uri,
-          anyRefFailed ? RefPushResult.FAILED : RefPushResult.SUCCEEDED,
-          lastRefStatusError);
+          outcome.anyRefFailed ? RefPushResult.FAILED : RefPushResult.SUCCEEDED,
+          outcome.lastRefStatusError);
     }
     for (Map.Entry<String, ReplicationState> entry : stateMap.entries()) {
-      if (!doneRefs.contains(entry.getKey())) {
+      if (!outcome.doneRefs.contains(entry.getKey())) {
         entry
             .getValue()
             .notifyRefReplicated(
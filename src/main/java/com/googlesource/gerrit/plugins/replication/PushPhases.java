@@ -0,0 +1,114 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Measures the time spent by a push in each of its phases. A phase runs until the next one starts,
+ * and the time of the phases run several times, like the push of each batch, is added up.
+ */
+class PushPhases {
+  enum Phase {
+    OPEN_REPOSITORY("open_repository"),
+    OPEN_TRANSPORT("open_transport"),
+    LOCAL_REFS("local_refs"),
+    LIST_REMOTE("list_remote"),
+    PUSH("push"),
+    UPDATE_STATES("update_states");
+
+    private final String name;
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    String getName() {
+      return name;
+    }
+  }
+
+  private final Ticker ticker;
+  private final long[] nanos = new long[Phase.values().length];
+  private final boolean[] ran = new boolean[Phase.values().length];
+  private Phase current;
+  private long startedAt;
+
+  PushPhases() {
+    this(Ticker.systemTicker());
+  }
+
+  PushPhases(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  /** Starts a phase, which ends the current one. */
+  void start(Phase phase) {
+    long now = ticker.read();
+    stop(now);
+    current = phase;
+    startedAt = now;
+    ran[phase.ordinal()] = true;
+  }
+
+  /** Ends the current phase. */
+  void stop() {
+    stop(ticker.read());
+  }
+
+  private void stop(long now) {
+    if (current != null) {
+      nanos[current.ordinal()] += now - startedAt;
+      current = null;
+    }
+  }
+
+  /** Returns the time spent in a phase, in nanoseconds. */
+  long getNanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  /**
+   * Records the time spent in each phase which ran in the metrics of a destination.
+   *
+   * @param metrics the replication metrics.
+   * @param destination the destination name.
+   */
+  void record(ReplicationMetrics metrics, String destination) {
+    for (Phase p : Phase.values()) {
+      if (ran[p.ordinal()]) {
+        metrics.recordPushPhase(destination, p.getName(), nanos[p.ordinal()]);
+      }
+    }
+  }
+
+  /** Returns the phases which ran with their time, like {@code "open_repository=2ms push=50ms"}. */
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder();
+    for (Phase p : Phase.values()) {
+      if (ran[p.ordinal()]) {
+        if (b.length() > 0) {
+          b.append(' ');
+        }
+        b.append(p.getName()).append('=').append(NANOSECONDS.toMillis(nanos[p.ordinal()]));
+        b.append("ms");
+      }
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Follows the progress of the packs sent by a push, to record it in the metrics of its destination
+ * and to show it in the output of {@code replication list --detail}.
+ *
+ * <p>JGit reports the generation of a pack as a sequence of tasks: the objects are counted, then
+ * compressed, then written to the remote. The compression time is the duration of the compressing
+ * task. The transfer time runs from the start of the writing task until the remote has reported
+ * the status of the refs, so it includes the time the remote spends storing the pack.
+ */
+class PushProgressMonitor implements ProgressMonitor {
+  private final ReplicationMetrics metrics;
+  private final String destination;
+
+  private String task;
+  private int done;
+  private int total;
+  private long taskStartNanos;
+  private long transferStartNanos;
+
+  PushProgressMonitor(ReplicationMetrics metrics, String destination) {
+    this.metrics = metrics;
+    this.destination = destination;
+  }
+
+  @Override
+  public void start(int totalTasks) {}
+
+  @Override
+  public synchronized void beginTask(String title, int totalWork) {
+    task = title;
+    done = 0;
+    total = totalWork;
+    taskStartNanos = System.nanoTime();
+    if (JGitText.get().writingObjects.equals(title)) {
+      transferStartNanos = taskStartNanos;
+    }
+  }
+
+  @Override
+  public synchronized void update(int completed) {
+    done += completed;
+  }
+
+  @Override
+  public synchronized void endTask() {
+    if (task == null) {
+      return;
+    }
+    if (JGitText.get().compressingObjects.equals(task)) {
+      metrics.recordCompressionTime(destination, System.nanoTime() - taskStartNanos);
+    } else if (JGitText.get().writingObjects.equals(task)) {
+      metrics.recordObjectsSent(destination, done);
+    }
+    task = null;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  /** Records the transfer time of the last pack, once the remote has reported its ref updates. */
+  synchronized void pushed() {
+    if (transferStartNanos != 0) {
+      metrics.recordTransferTime(destination, System.nanoTime() - transferStartNanos);
+      transferStartNanos = 0;
+    }
+    task = null;
+  }
+
+  /**
+   * Returns the task in progress with its completed work, like {@code "Writing objects: 12/40"}.
+   *
+   * @return the task in progress, or an empty string if there is none.
+   */
+  synchronized String getStatus() {
+    if (task == null) {
+      return "";
+    }
+    if (total == UNKNOWN) {
+      return task + ": " + done;
+    }
+    return task + ": " + done + "/" + total;
+  }
+}
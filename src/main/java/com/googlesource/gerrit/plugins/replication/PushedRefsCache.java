@@ -0,0 +1,122 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Collection;
+import java.util.Objects;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Remembers the last ObjectId successfully pushed to each remote ref, so that a push of the refs
+ * of an event does not send again a ref which was already pushed with the same value, like when a
+ * push is retried, when the waiting tasks are replayed or when {@code replication start} is run
+ * again.
+ *
+ * <p>At most {@code replication.pushedRefsCacheSize} refs are remembered, for all URIs; the cache
+ * is disabled when the size is 0, which is the default. A remote ref is forgotten when a push
+ * reports it was not updated, and all the refs of a URI are forgotten when a push to the URI fails
+ * or when the remote project is deleted, since the remote repository may have been recreated. The
+ * remote refs changed by other writers are not detected, so the cache should only be enabled for
+ * remotes which are only written to by this server. The size is read when the plugin is loaded.
+ */
+@Singleton
+public class PushedRefsCache {
+  private static class Key {
+    final URIish uri;
+    final String ref;
+
+    Key(URIish uri, String ref) {
+      this.uri = uri;
+      this.ref = ref;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return uri.equals(k.uri) && ref.equals(k.ref);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(uri, ref);
+    }
+  }
+
+  private final ReplicationMetrics metrics;
+  private final boolean enabled;
+  private final Cache<Key, ObjectId> pushed;
+
+  @Inject
+  PushedRefsCache(ReplicationConfig replConfig, ReplicationMetrics metrics) {
+    this.metrics = metrics;
+    long size =
+        Math.max(0, replConfig.getConfig().getLong("replication", "pushedRefsCacheSize", 0));
+    enabled = size > 0;
+    pushed = CacheBuilder.newBuilder().maximumSize(size).build();
+  }
+
+  /** Whether the update would set the remote ref to the value it was last pushed with. */
+  boolean isPushed(URIish uri, RemoteRefUpdate update) {
+    if (!enabled || update.isDelete()) {
+      return false;
+    }
+    ObjectId last = pushed.getIfPresent(new Key(uri, update.getRemoteName()));
+    if (last != null && last.equals(update.getNewObjectId())) {
+      metrics.pushedRefsCacheHit();
+      return true;
+    }
+    metrics.pushedRefsCacheMiss();
+    return false;
+  }
+
+  /** Remembers the refs updated by a push to a URI, and forgets those which were not updated. */
+  void update(URIish uri, Collection<RemoteRefUpdate> updates) {
+    if (!enabled) {
+      return;
+    }
+    for (RemoteRefUpdate u : updates) {
+      Key key = new Key(uri, u.getRemoteName());
+      switch (u.getStatus()) {
+        case OK:
+        case UP_TO_DATE:
+          if (u.isDelete()) {
+            pushed.invalidate(key);
+          } else {
+            pushed.put(key, u.getNewObjectId().copy());
+          }
+          break;
+        default:
+          pushed.invalidate(key);
+          break;
+      }
+    }
+  }
+
+  /** Forgets the refs pushed to a URI, whose remote refs are no longer known. */
+  void invalidate(URIish uri) {
+    if (enabled) {
+      pushed.asMap().keySet().removeIf(k -> k.uri.equals(uri));
+    }
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * Matches refs against the sources or the destinations of a list of RefSpecs, like calling {@link
+ * RefSpec#matchSource(String)} or {@link RefSpec#matchDestination(String)} on each of them in turn,
+ * without trying all of them for every ref.
+ *
+ * <p>The RefSpecs without wildcard are looked up by name. The RefSpecs with a wildcard are kept in
+ * a trie of the characters before their wildcard, so that only the RefSpecs whose prefix is a
+ * prefix of the ref are tried. When several RefSpecs match a ref, the first one of the list is used.
+ */
+class RefSpecMatcher {
+  private static class Wildcard {
+    final int index;
+    final int prefixLength;
+    final String suffix;
+
+    Wildcard(int index, String pattern) {
+      this.index = index;
+      int wildcard = pattern.indexOf('*');
+      prefixLength = wildcard;
+      suffix = pattern.substring(wildcard + 1);
+    }
+
+    /** Whether a ref starting with the prefix matches the pattern. */
+    boolean matches(String ref) {
+      return ref.length() > prefixLength + suffix.length() && ref.endsWith(suffix);
+    }
+  }
+
+  private static class Node {
+    final Map<Character, Node> children = new HashMap<>();
+    final List<Wildcard> wildcards = new ArrayList<>();
+  }
+
+  /** Returns a matcher of the sources of the RefSpecs, which expands the matching RefSpec. */
+  static RefSpecMatcher forSource(List<RefSpec> specs) {
+    return new RefSpecMatcher(specs, RefSpec::getSource, false);
+  }
+
+  /** Returns a matcher of the destinations of the RefSpecs, which expands the matching RefSpec. */
+  static RefSpecMatcher forDestination(List<RefSpec> specs) {
+    return new RefSpecMatcher(specs, RefSpec::getDestination, true);
+  }
+
+  private final ImmutableList<RefSpec> specs;
+  private final boolean destination;
+  private final Map<String, Integer> exact = new HashMap<>();
+  private final Node root = new Node();
+
+  private RefSpecMatcher(
+      List<RefSpec> specs, Function<RefSpec, String> pattern, boolean destination) {
+    this.specs = ImmutableList.copyOf(specs);
+    this.destination = destination;
+    for (int i = 0; i < this.specs.size(); i++) {
+      String p = pattern.apply(this.specs.get(i));
+      if (p == null) {
+        continue;
+      }
+      if (RefSpec.isWildcard(p)) {
+        Wildcard w = new Wildcard(i, p);
+        Node node = root;
+        for (int c = 0; c < w.prefixLength; c++) {
+          node = node.children.computeIfAbsent(p.charAt(c), k -> new Node());
+        }
+        node.wildcards.add(w);
+      } else {
+        exact.putIfAbsent(p, i);
+      }
+    }
+  }
+
+  /** Whether one of the RefSpecs matches the ref. */
+  boolean matches(String ref) {
+    return find(ref) >= 0;
+  }
+
+  /**
+   * Returns the first RefSpec matching the ref, expanded for the ref.
+   *
+   * @return the expanded RefSpec, or {@code null} if none matches the ref.
+   */
+  @Nullable
+  RefSpec match(String ref) {
+    int index = find(ref);
+    if (index < 0) {
+      return null;
+    }
+    RefSpec spec = specs.get(index);
+    return destination ? spec.expandFromDestination(ref) : spec.expandFromSource(ref);
+  }
+
+  private int find(String ref) {
+    Integer exactIndex = exact.get(ref);
+    int best = exactIndex != null ? exactIndex : Integer.MAX_VALUE;
+    Node node = root;
+    for (int c = 0; node != null; c++) {
+      for (Wildcard w : node.wildcards) {
+        if (w.index >= best) {
+          break;
+        }
+        if (w.matches(ref)) {
+          best = w.index;
+          break;
+        }
+      }
+      if (c == ref.length()) {
+        break;
+      }
+      node = node.children.get(ref.charAt(c));
+    }
+    return best == Integer.MAX_VALUE ? -1 : best;
+  }
+}
@@ -0,0 +1,419 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.googlesource.gerrit.plugins.replication.ReplicationQueue.repLog;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.googlesource.gerrit.plugins.replication.ReplicationQueue.ReferenceUpdatedEvent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Hands reference updated events over from the threads delivering them to a single writer thread,
+ * which persists and schedules their replication tasks. The writer takes all the events queued
+ * meanwhile at once, so that their tasks are persisted together.
+ *
+ * <p>An event is only acknowledged by {@link #offer(ReferenceUpdatedEvent)} once it has been
+ * appended to the event log under the log directory and forced to disk. Threads offering events
+ * concurrently share a single force. The event is then also queued in memory for the writer. When
+ * the queue is full, or the handoff is stopped, the event is only kept in the log.
+ *
+ * <p>The log is split into files numbered in the order they are written. Once the writer has caught
+ * up with the queue, it closes the current file, reads back the events of it which did not fit in
+ * the queue, and deletes it. The files left by a previous run, for example after a crash, are read
+ * back in the order they were written when the handoff starts.
+ */
+class ReferenceUpdatedEventHandoff implements Runnable {
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final int REPLAY_BATCH_SIZE = 1000;
+  private static final String LOG_PREFIX = "events-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final Pattern LOG_FILE = Pattern.compile(LOG_PREFIX + "(\\d+)\\" + LOG_SUFFIX);
+
+  private final BlockingQueue<ReferenceUpdatedEvent> queue;
+  private final Path logDir;
+  private final Consumer<List<ReferenceUpdatedEvent>> writer;
+  private final Object syncLock = new Object();
+  private volatile boolean running;
+  private ExecutorService executor;
+  private Future<?> future;
+
+  // Guarded by this.
+  private boolean stopped;
+  private boolean adopted;
+  private FileChannel log;
+  private long logSeq;
+  private long logBytes;
+  private int logRecords;
+  private BitSet logOverflowed;
+  private long appended;
+  /**
+   * Closed log files, with the records to read back before deleting them, which did not fit in the
+   * queue. All of them are read back when null.
+   */
+  private final TreeMap<Long, BitSet> closedLogs = new TreeMap<>();
+
+  // Guarded by syncLock.
+  private long synced;
+
+  ReferenceUpdatedEventHandoff(
+      int capacity, Path logDir, Consumer<List<ReferenceUpdatedEvent>> writer) {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.logDir = logDir;
+    this.writer = writer;
+  }
+
+  /** Starts the writer, which first reads back the log files left by a previous run. */
+  void start(ExecutorService executor) {
+    synchronized (this) {
+      adoptLogs();
+    }
+    running = true;
+    this.executor = executor;
+    future = executor.submit(this);
+  }
+
+  /**
+   * Stops the writer and shuts its executor down. The events which it has not written yet are kept
+   * in the log and read back on the next start.
+   */
+  void stop() {
+    synchronized (this) {
+      stopped = true;
+    }
+    running = false;
+    if (future != null) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        repLog.atSevere().withCause(e).log("Replication event writer failed");
+      }
+    }
+    if (executor != null) {
+      executor.shutdown();
+    }
+    synchronized (this) {
+      if (log != null) {
+        closeLog(queue.isEmpty() ? logOverflowed : null);
+        queue.clear();
+      }
+    }
+    deleteWrittenLogs();
+  }
+
+  /**
+   * Hands an event over to the writer, once it has been forced to the log. Once the handoff is
+   * stopped, events are only written to the log.
+   *
+   * @return false if the event could not be written to the log.
+   */
+  boolean offer(ReferenceUpdatedEvent event) {
+    // Writing to the log from an interrupted thread would close it.
+    boolean interrupted = Thread.interrupted();
+    try {
+      long record;
+      synchronized (this) {
+        try {
+          append(event);
+        } catch (IOException e) {
+          repLog.atSevere().withCause(e).log("Couldn't write %s to %s", event, logDir);
+          rollOver();
+          return false;
+        }
+        record = ++appended;
+        if (stopped) {
+          // Nobody is left to write the event: it is read back on the next start.
+          return closeLog(null);
+        }
+        if (!queue.offer(event)) {
+          repLog.atFine().log("Replication event queue full, keeping %s on disk", event);
+          logOverflowed.set(logRecords - 1);
+        }
+      }
+      return awaitDurable(record);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    replayClosedLogs();
+    while (running) {
+      try {
+        ReferenceUpdatedEvent event = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (event != null) {
+          List<ReferenceUpdatedEvent> batch = new ArrayList<>();
+          batch.add(event);
+          queue.drainTo(batch);
+          write(batch);
+        } else {
+          rotate();
+          replayClosedLogs();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Replication Event Writer";
+  }
+
+  @VisibleForTesting
+  int queued() {
+    return queue.size();
+  }
+
+  private void write(List<ReferenceUpdatedEvent> events) {
+    try {
+      writer.accept(events);
+    } catch (RuntimeException e) {
+      repLog.atSevere().withCause(e).log("Unexpected error while writing %s", events);
+    }
+  }
+
+  /** Waits until the record has been forced to disk, together with the ones appended meanwhile. */
+  private boolean awaitDurable(long record) {
+    synchronized (syncLock) {
+      if (synced >= record) {
+        return true;
+      }
+      long batch;
+      FileChannel channel;
+      synchronized (this) {
+        batch = appended;
+        channel = log;
+      }
+      if (channel != null) {
+        try {
+          channel.force(false);
+        } catch (ClosedChannelException e) {
+          // The file was closed, which forces it first.
+        } catch (IOException e) {
+          repLog.atSevere().withCause(e).log("Couldn't force %s to disk", logDir);
+          return false;
+        }
+      }
+      synced = batch;
+      return true;
+    }
+  }
+
+  private void append(ReferenceUpdatedEvent event) throws IOException {
+    if (log == null) {
+      openLog();
+    }
+    // Ref names cannot contain spaces, so the record is split at the first one.
+    ByteBuffer record =
+        ByteBuffer.wrap((event.refName() + " " + event.projectName() + "\n").getBytes(UTF_8));
+    while (record.hasRemaining()) {
+      logBytes += log.write(record);
+    }
+    logRecords++;
+  }
+
+  private void openLog() throws IOException {
+    adoptLogs();
+    Files.createDirectories(logDir);
+    long seq = logSeq + 1;
+    log =
+        FileChannel.open(
+            logFile(seq),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    logSeq = seq;
+    logBytes = 0;
+    logRecords = 0;
+    logOverflowed = new BitSet();
+  }
+
+  /**
+   * Continues the log in a new file after a failed append, so that the next record is not glued
+   * onto the one which may have been partially written.
+   */
+  private void rollOver() {
+    if (log != null) {
+      closeLog(null);
+    }
+  }
+
+  /**
+   * Closes the current log file, forcing it first.
+   *
+   * @param toReplay the records to read back before deleting the file, or null for all of them.
+   * @return false if the file could not be forced to disk.
+   */
+  private boolean closeLog(BitSet toReplay) {
+    boolean forced = true;
+    try {
+      log.force(false);
+    } catch (IOException e) {
+      repLog.atSevere().withCause(e).log("Couldn't force %s to disk", logFile(logSeq));
+      forced = false;
+    } finally {
+      try {
+        log.close();
+      } catch (IOException e) {
+        repLog.atWarning().withCause(e).log("Error while closing %s", logFile(logSeq));
+      }
+      log = null;
+      closedLogs.put(logSeq, toReplay);
+    }
+    return forced;
+  }
+
+  /** Closes the current log file once the writer has caught up with the queue. */
+  private synchronized void rotate() {
+    if (log != null && logBytes > 0 && queue.isEmpty()) {
+      closeLog(logOverflowed);
+    }
+  }
+
+  /** Takes over the log files left by a previous run, to read them back. */
+  private void adoptLogs() {
+    if (adopted) {
+      return;
+    }
+    adopted = true;
+    if (!Files.isDirectory(logDir)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(logDir)) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        Matcher m = LOG_FILE.matcher(p.getFileName().toString());
+        if (m.matches()) {
+          long seq = Long.parseLong(m.group(1));
+          closedLogs.put(seq, null);
+          logSeq = Math.max(logSeq, seq);
+        }
+      }
+    } catch (IOException e) {
+      repLog.atSevere().withCause(e).log("Error while listing %s", logDir);
+    }
+  }
+
+  /** Reads back the closed log files in the order they were written, and deletes them. */
+  private void replayClosedLogs() {
+    while (running) {
+      Map.Entry<Long, BitSet> next;
+      synchronized (this) {
+        next = closedLogs.firstEntry();
+      }
+      if (next == null) {
+        return;
+      }
+      Path file = logFile(next.getKey());
+      try {
+        if (next.getValue() == null || !next.getValue().isEmpty()) {
+          replay(file, next.getValue());
+        }
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        // Retried once the writer is idle again.
+        repLog.atSevere().withCause(e).log("Error while reading replication events %s", file);
+        return;
+      }
+      synchronized (this) {
+        closedLogs.remove(next.getKey());
+      }
+    }
+  }
+
+  /** Deletes the closed log files whose events have all been written. */
+  private synchronized void deleteWrittenLogs() {
+    Iterator<Map.Entry<Long, BitSet>> it = closedLogs.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, BitSet> e = it.next();
+      if (e.getValue() != null && e.getValue().isEmpty()) {
+        try {
+          Files.deleteIfExists(logFile(e.getKey()));
+          it.remove();
+        } catch (IOException ex) {
+          repLog.atWarning().withCause(ex).log("Couldn't delete %s", logFile(e.getKey()));
+        }
+      }
+    }
+  }
+
+  private void replay(Path file, BitSet only) throws IOException {
+    List<ReferenceUpdatedEvent> batch = new ArrayList<>();
+    int index = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = reader.read()) != -1) {
+        if (c != '\n') {
+          line.append((char) c);
+          continue;
+        }
+        int sp = line.indexOf(" ");
+        if (only != null && !only.get(index++)) {
+          // Already written from the queue.
+        } else if (sp > 0) {
+          batch.add(ReferenceUpdatedEvent.create(line.substring(sp + 1), line.substring(0, sp)));
+        } else {
+          repLog.atSevere().log("Discarding malformed replication event '%s' in %s", line, file);
+        }
+        line.setLength(0);
+        if (batch.size() >= REPLAY_BATCH_SIZE) {
+          write(batch);
+          batch = new ArrayList<>();
+        }
+      }
+      if (line.length() > 0) {
+        repLog.atWarning().log("Ignoring incomplete replication event in %s", file);
+      }
+    }
+    if (!batch.isEmpty()) {
+      write(batch);
+    }
+  }
+
+  private Path logFile(long seq) {
+    return logDir.resolve(LOG_PREFIX + seq + LOG_SUFFIX);
+  }
+}
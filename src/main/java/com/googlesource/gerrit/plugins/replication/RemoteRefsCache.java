@@ -0,0 +1,207 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.googlesource.gerrit.plugins.replication.ReplicationQueue.repLog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Caches the refs of remote repositories, so that a push of all the refs of a project does not
+ * always need to list all the refs of the remote repository.
+ *
+ * <p>The refs of a URI are cached when they are fully listed, and then updated from the results of
+ * the pushes to the URI. Before being used, the cached refs are validated by listing a sample of
+ * the remote refs: the refs under refs/heads/, refs/tags/ and refs/meta/, and those of a random
+ * refs/changes/ shard. With protocol v2, the remote only advertises the sampled refs. The cached
+ * refs of a URI are dropped when the sample doesn't match, when a push to the URI fails or reports
+ * a ref that was not updated, when the remote project is deleted, and once they are older than the
+ * maximum age of the destination.
+ *
+ * <p>At most {@code replication.remoteRefsCacheSize} refs are cached, for all URIs, counted when
+ * the refs of a URI are listed; the least recently used URIs are dropped first. The refs of a URI
+ * are also dropped once they were listed {@code replication.remoteRefsCacheExpiry} ago, whatever
+ * the maximum age of the destination. Both settings are read when the plugin is loaded.
+ *
+ * <p>The sample cannot detect every change made to the remote repository by other writers, so the
+ * cache should only be enabled for remotes which are only written to by this server.
+ */
+@Singleton
+public class RemoteRefsCache {
+  @VisibleForTesting
+  static final ImmutableList<String> FIXED_SAMPLE_PREFIXES =
+      ImmutableList.of("refs/heads/", "refs/tags/", "refs/meta/");
+
+  private static final int CHANGES_SHARDS = 100;
+  private static final long DEFAULT_SIZE = 1_000_000;
+  private static final long DEFAULT_EXPIRY_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+  /** Lists the remote refs whose name starts with one of the given prefixes. */
+  @FunctionalInterface
+  interface Lister {
+    Map<String, Ref> list(List<String> prefixes) throws IOException;
+  }
+
+  private static class Entry {
+    final Map<String, Ref> refs;
+    final long listedAtNanos;
+
+    Entry(Map<String, Ref> refs, long listedAtNanos) {
+      this.refs = refs;
+      this.listedAtNanos = listedAtNanos;
+    }
+  }
+
+  private final Cache<URIish, Entry> entries;
+
+  @Inject
+  RemoteRefsCache(ReplicationConfig replConfig) {
+    this(
+        replConfig.getConfig().getLong("replication", "remoteRefsCacheSize", DEFAULT_SIZE),
+        replConfig
+            .getConfig()
+            .getTimeUnit(
+                "replication",
+                null,
+                "remoteRefsCacheExpiry",
+                DEFAULT_EXPIRY_SECONDS,
+                TimeUnit.SECONDS));
+  }
+
+  @VisibleForTesting
+  RemoteRefsCache(long maxRefs, long expirySeconds) {
+    entries =
+        CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(0, maxRefs))
+            .<URIish, Entry>weigher((uri, entry) -> entry.refs.size())
+            .expireAfterWrite(Math.max(0, expirySeconds), TimeUnit.SECONDS)
+            .build();
+  }
+
+  /**
+   * Returns the cached refs of a URI, if they are younger than the maximum age and match the refs
+   * listed by a sample.
+   */
+  Optional<Map<String, Ref>> get(URIish uri, long maxAgeSeconds, Lister sampler)
+      throws IOException {
+    Entry entry = entries.getIfPresent(uri);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    if (System.nanoTime() - entry.listedAtNanos >= TimeUnit.SECONDS.toNanos(maxAgeSeconds)) {
+      repLog.atFine().log("Cached remote refs of %s expired", uri);
+      entries.asMap().remove(uri, entry);
+      return Optional.empty();
+    }
+    List<String> prefixes = samplePrefixes();
+    Map<String, Ref> cached = new HashMap<>(entry.refs);
+    Map<String, Ref> sampled = sampler.list(prefixes);
+    for (Ref ref : sampled.values()) {
+      if (matches(ref.getName(), prefixes)) {
+        Ref cachedRef = cached.get(ref.getName());
+        if (cachedRef == null || !cachedRef.getObjectId().equals(ref.getObjectId())) {
+          return invalidate(uri, entry, ref.getName());
+        }
+      }
+    }
+    for (String name : cached.keySet()) {
+      if (matches(name, prefixes) && !sampled.containsKey(name)) {
+        return invalidate(uri, entry, name);
+      }
+    }
+    repLog.atFine().log("Using %d cached remote refs of %s", cached.size(), uri);
+    return Optional.of(cached);
+  }
+
+  /**
+   * Caches all the refs of a URI, as just listed. The refs later added by pushes are not counted
+   * against the size of the cache.
+   */
+  void put(URIish uri, Map<String, Ref> refs) {
+    entries.put(uri, new Entry(new ConcurrentHashMap<>(refs), System.nanoTime()));
+  }
+
+  /** Applies the results of a push to the cached refs of its URI. */
+  void update(URIish uri, Collection<RemoteRefUpdate> updates) {
+    Entry entry = entries.getIfPresent(uri);
+    if (entry == null) {
+      return;
+    }
+    for (RemoteRefUpdate u : updates) {
+      switch (u.getStatus()) {
+        case OK:
+        case UP_TO_DATE:
+          if (u.isDelete()) {
+            entry.refs.remove(u.getRemoteName());
+          } else {
+            entry.refs.put(
+                u.getRemoteName(),
+                new ObjectIdRef.Unpeeled(
+                    Ref.Storage.NETWORK, u.getRemoteName(), u.getNewObjectId()));
+          }
+          break;
+        default:
+          invalidate(uri);
+          return;
+      }
+    }
+  }
+
+  /** Drops the cached refs of a URI, whose remote refs are no longer known. */
+  void invalidate(URIish uri) {
+    entries.invalidate(uri);
+  }
+
+  private Optional<Map<String, Ref>> invalidate(URIish uri, Entry entry, String ref) {
+    repLog.atInfo().log("Cached remote refs of %s don't match %s, listing them again", uri, ref);
+    entries.asMap().remove(uri, entry);
+    return Optional.empty();
+  }
+
+  private static List<String> samplePrefixes() {
+    int shard = ThreadLocalRandom.current().nextInt(CHANGES_SHARDS);
+    return ImmutableList.<String>builder()
+        .addAll(FIXED_SAMPLE_PREFIXES)
+        .add(String.format("refs/changes/%02d/", shard))
+        .build();
+  }
+
+  private static boolean matches(String name, List<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
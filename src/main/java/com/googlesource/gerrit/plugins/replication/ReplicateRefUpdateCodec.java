@@ -0,0 +1,97 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of a {@link ReplicateRefUpdate}.
+ *
+ * <p>A record starts with a magic byte, which can never start a JSON record, and a version byte.
+ * They are followed by the project, ref, uri and remote, each as a 4 bytes big-endian length and
+ * its UTF-8 bytes.
+ */
+final class ReplicateRefUpdateCodec {
+  static final byte MAGIC = (byte) 0xfe;
+  static final byte VERSION = 1;
+
+  private static final int HEADER_LENGTH = 2;
+
+  static boolean isBinary(byte[] record) {
+    return record.length > 0 && record[0] == MAGIC;
+  }
+
+  static byte[] encode(ReplicateRefUpdate update) {
+    byte[] project = update.project().getBytes(UTF_8);
+    byte[] ref = update.ref().getBytes(UTF_8);
+    byte[] uri = update.uri().getBytes(UTF_8);
+    byte[] remote = update.remote().getBytes(UTF_8);
+    ByteBuffer buf =
+        ByteBuffer.allocate(
+            HEADER_LENGTH
+                + 4 * Integer.BYTES
+                + project.length
+                + ref.length
+                + uri.length
+                + remote.length);
+    buf.put(MAGIC).put(VERSION);
+    putField(buf, project);
+    putField(buf, ref);
+    putField(buf, uri);
+    putField(buf, remote);
+    return buf.array();
+  }
+
+  static ReplicateRefUpdate decode(byte[] record) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(record);
+    try {
+      if (buf.get() != MAGIC) {
+        throw new IOException("Not a binary replication task");
+      }
+      byte version = buf.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported replication task version " + version);
+      }
+      String project = getField(buf);
+      String ref = getField(buf);
+      String uri = getField(buf);
+      String remote = getField(buf);
+      return ReplicateRefUpdate.create(project, ref, uri, remote);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated replication task", e);
+    }
+  }
+
+  private static void putField(ByteBuffer buf, byte[] field) {
+    buf.putInt(field.length).put(field);
+  }
+
+  private static String getField(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0 || length > buf.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String field = new String(buf.array(), buf.position(), length, UTF_8);
+    buf.position(buf.position() + length);
+    return field;
+  }
+
+  private ReplicateRefUpdateCodec() {}
+}
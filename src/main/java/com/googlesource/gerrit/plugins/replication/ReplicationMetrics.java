@@ -14,26 +14,59 @@
 
 package com.googlesource.gerrit.plugins.replication;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.Histogram1;
 import com.google.gerrit.metrics.Histogram3;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.metrics.Timer2;
 import com.google.gerrit.server.logging.PluginMetadata;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class ReplicationMetrics {
+  private static final long TASK_COUNTS_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
   private final Timer1<String> executionTime;
   private final Histogram1<String> executionDelay;
   private final Histogram1<String> executionRetries;
   private final Histogram3<Integer, String, String> slowProjectReplicationLatency;
+  private final Timer1<String> tasksStoreLatency;
+  private final Counter1<String> objectsSent;
+  private final Histogram1<String> pushObjects;
+  private final Timer1<String> compressionTime;
+  private final Timer1<String> transferTime;
+  private final Timer2<String, String> pushPhaseLatency;
+  private final CallbackMetric1<String, Long> waitingTasks;
+  private final CallbackMetric1<String, Long> runningTasks;
+  private final Counter0 transportPoolHits;
+  private final Counter0 transportPoolMisses;
+  private final Counter0 pushedRefsCacheHits;
+  private final Counter0 pushedRefsCacheMisses;
+
+  private final Provider<ReplicationTasksStore> tasksStore;
+  private Map<String, Long> waitingTasksCounts = ImmutableMap.of();
+  private Map<String, Long> runningTasksCounts = ImmutableMap.of();
+  private long taskCountsNanos;
+  private boolean taskCountsLoaded;
 
   @Inject
-  ReplicationMetrics(@PluginName String pluginName, MetricMaker metricMaker) {
+  ReplicationMetrics(
+      @PluginName String pluginName,
+      MetricMaker metricMaker,
+      Provider<ReplicationTasksStore> tasksStore) {
+    this.tasksStore = tasksStore;
+
     Field<String> DEST_FIELD =
         Field.ofString(
                 "destination",
@@ -62,6 +95,24 @@ public class ReplicationMetrics {
                             PluginMetadata.create("slow_threshold", fieldValue.toString())))
             .build();
 
+    Field<String> OPERATION_FIELD =
+        Field.ofString(
+                "operation",
+                (metadataBuilder, fieldValue) ->
+                    metadataBuilder
+                        .pluginName(pluginName)
+                        .addPluginMetadata(PluginMetadata.create("operation", fieldValue)))
+            .build();
+
+    Field<String> PHASE_FIELD =
+        Field.ofString(
+                "phase",
+                (metadataBuilder, fieldValue) ->
+                    metadataBuilder
+                        .pluginName(pluginName)
+                        .addPluginMetadata(PluginMetadata.create("phase", fieldValue)))
+            .build();
+
     executionTime =
         metricMaker.newTimer(
             "replication_latency",
@@ -96,6 +147,111 @@ public class ReplicationMetrics {
             SLOW_THRESHOLD_FIELD,
             PROJECT_FIELD,
             DEST_FIELD);
+
+    tasksStoreLatency =
+        metricMaker.newTimer(
+            "tasks_store_latency",
+            new Description("Time spent by an operation of the replication tasks store.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            OPERATION_FIELD);
+
+    objectsSent =
+        metricMaker.newCounter(
+            "objects_sent",
+            new Description("Number of objects sent to remote destination.")
+                .setRate()
+                .setUnit("objects"),
+            DEST_FIELD);
+
+    pushObjects =
+        metricMaker.newHistogram(
+            "push_objects",
+            new Description("Number of objects sent by a pack pushed to remote destination.")
+                .setCumulative()
+                .setUnit("objects"),
+            DEST_FIELD);
+
+    compressionTime =
+        metricMaker.newTimer(
+            "compression_time",
+            new Description("Time spent compressing the objects of a pack pushed to remote.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            DEST_FIELD);
+
+    transferTime =
+        metricMaker.newTimer(
+            "transfer_time",
+            new Description("Time spent sending a pack to remote destination.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            DEST_FIELD);
+
+    pushPhaseLatency =
+        metricMaker.newTimer(
+            "push_phase_latency",
+            new Description("Time spent by a phase of the pushes to remote destination.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            DEST_FIELD,
+            PHASE_FIELD);
+
+    waitingTasks =
+        metricMaker.newCallbackMetric(
+            "tasks_waiting",
+            Long.class,
+            new Description("Number of tasks waiting to be pushed to remote destination.")
+                .setGauge()
+                .setUnit("tasks"),
+            DEST_FIELD);
+
+    runningTasks =
+        metricMaker.newCallbackMetric(
+            "tasks_running",
+            Long.class,
+            new Description("Number of tasks being pushed to remote destination.")
+                .setGauge()
+                .setUnit("tasks"),
+            DEST_FIELD);
+
+    metricMaker.newTrigger(waitingTasks, runningTasks, this::setTaskCounts);
+
+    metricMaker.newCallbackMetric(
+        "tasks_building",
+        Long.class,
+        new Description("Number of tasks being written to the replication tasks store.")
+            .setGauge()
+            .setUnit("tasks"),
+        () -> tasksStore.get().buildingCount());
+
+    transportPoolHits =
+        metricMaker.newCounter(
+            "transport_pool_hits",
+            new Description("Number of pushes which reused an idle transport.")
+                .setRate()
+                .setUnit("pushes"));
+
+    transportPoolMisses =
+        metricMaker.newCounter(
+            "transport_pool_misses",
+            new Description("Number of pushes which found no idle transport to reuse.")
+                .setRate()
+                .setUnit("pushes"));
+
+    pushedRefsCacheHits =
+        metricMaker.newCounter(
+            "pushed_refs_cache_hits",
+            new Description("Number of refs not pushed since they were already pushed.")
+                .setRate()
+                .setUnit("refs"));
+
+    pushedRefsCacheMisses =
+        metricMaker.newCounter(
+            "pushed_refs_cache_misses",
+            new Description("Number of refs pushed since they were not already pushed.")
+                .setRate()
+                .setUnit("refs"));
   }
 
   /**
@@ -132,4 +288,96 @@ public class ReplicationMetrics {
       String destinationName, String projectName, Integer slowThreshold, long latency) {
     slowProjectReplicationLatency.record(slowThreshold, destinationName, projectName, latency);
   }
+
+  /**
+   * Start the latency timer of an operation of the replication tasks store.
+   *
+   * @param operation the name of the operation.
+   * @return the timer context.
+   */
+  Timer1.Context<String> startTasksStoreOperation(String operation) {
+    return tasksStoreLatency.start(operation);
+  }
+
+  /**
+   * Record the objects sent by a pack pushed to a destination.
+   *
+   * @param name the destination name.
+   * @param objects number of objects written in the pack.
+   */
+  void recordObjectsSent(String name, long objects) {
+    objectsSent.incrementBy(name, objects);
+    pushObjects.record(name, objects);
+  }
+
+  /**
+   * Record the time spent compressing the objects of a pack pushed to a destination.
+   *
+   * @param name the destination name.
+   * @param nanos compression time in nanoseconds.
+   */
+  void recordCompressionTime(String name, long nanos) {
+    compressionTime.record(name, nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record the time spent sending a pack to a destination, until it reported the ref updates.
+   *
+   * @param name the destination name.
+   * @param nanos transfer time in nanoseconds.
+   */
+  void recordTransferTime(String name, long nanos) {
+    transferTime.record(name, nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record the time spent by a phase of a push to a destination.
+   *
+   * @param name the destination name.
+   * @param phase the name of the phase.
+   * @param nanos time spent in the phase in nanoseconds.
+   */
+  void recordPushPhase(String name, String phase, long nanos) {
+    pushPhaseLatency.record(name, phase, nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Record a push which reused an idle transport of the pool. */
+  void transportPoolHit() {
+    transportPoolHits.increment();
+  }
+
+  /** Record a push which had to open a transport, since the pool had none idle. */
+  void transportPoolMiss() {
+    transportPoolMisses.increment();
+  }
+
+  /** Record a ref not pushed again, since it was already pushed with the same value. */
+  void pushedRefsCacheHit() {
+    pushedRefsCacheHits.increment();
+  }
+
+  /** Record a ref pushed, since it was not known to be already pushed with the same value. */
+  void pushedRefsCacheMiss() {
+    pushedRefsCacheMisses.increment();
+  }
+
+  /**
+   * Set the waiting and running tasks gauges of each destination. The counts are refreshed at most
+   * every {@link #TASK_COUNTS_MAX_AGE_NANOS}, as a store without an in-memory index of its tasks
+   * has to read all of them.
+   */
+  private synchronized void setTaskCounts() {
+    long now = System.nanoTime();
+    if (!taskCountsLoaded || now - taskCountsNanos >= TASK_COUNTS_MAX_AGE_NANOS) {
+      ReplicationTasksStore store = tasksStore.get();
+      waitingTasksCounts = store.waitingCountsByRemote();
+      runningTasksCounts = store.runningCountsByRemote();
+      taskCountsNanos = now;
+      taskCountsLoaded = true;
+    }
+    waitingTasksCounts.forEach(waitingTasks::set);
+    waitingTasks.prune();
+    runningTasksCounts.forEach(runningTasks::set);
+    runningTasks.prune();
+  }
 }
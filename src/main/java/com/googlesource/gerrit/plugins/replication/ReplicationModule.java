@@ -41,11 +41,16 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.transport.SshSessionFactory;
 import org.eclipse.jgit.util.FS;
 
 class ReplicationModule extends AbstractModule {
+  static final String JOURNAL_TASKS_STORAGE = "journal";
+  static final String URI_TASKS_STORAGE = "uri";
+  static final String KEY_VALUE_TASKS_STORAGE = "kv";
+
   private final SitePaths site;
   private final Path cfgPath;
 
@@ -87,7 +92,8 @@ class ReplicationModule extends AbstractModule {
     bind(ReplicationDestinations.class).to(DestinationsCollection.class);
     bind(ConfigParser.class).to(DestinationConfigParser.class).in(Scopes.SINGLETON);
 
-    if (getReplicationConfig().getBoolean("gerrit", "autoReload", false)) {
+    FileBasedConfig replicationConfig = getReplicationConfig();
+    if (replicationConfig.getBoolean("gerrit", "autoReload", false)) {
       bind(ReplicationConfig.class)
           .annotatedWith(MainReplicationConfig.class)
           .to(getReplicationConfigClass());
@@ -107,7 +113,17 @@ class ReplicationModule extends AbstractModule {
     EventTypes.register(ReplicationScheduledEvent.TYPE, ReplicationScheduledEvent.class);
     bind(SshSessionFactory.class).toProvider(ReplicationSshSessionFactoryProvider.class);
 
-    bind(TransportFactory.class).to(TransportFactoryImpl.class).in(Scopes.SINGLETON);
+    bind(TransportFactoryImpl.class).in(Scopes.SINGLETON);
+    bind(TransportFactory.class).to(PoolingTransportFactory.class).in(Scopes.SINGLETON);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(PoolingTransportFactory.class);
+
+    bind(ReplicationTasksStore.class)
+        .annotatedWith(MainReplicationTasksStore.class)
+        .to(getTasksStoreClass(replicationConfig))
+        .in(Scopes.SINGLETON);
+    bind(ReplicationTasksStore.class).to(MeteredReplicationTasksStore.class).in(Scopes.SINGLETON);
   }
 
   private FileBasedConfig getReplicationConfig() {
@@ -121,6 +137,20 @@ class ReplicationModule extends AbstractModule {
     return config;
   }
 
+  private static Class<? extends ReplicationTasksStore> getTasksStoreClass(Config config) {
+    String tasksStorage = config.getString("replication", null, "tasksStorage");
+    if (JOURNAL_TASKS_STORAGE.equals(tasksStorage)) {
+      return JournalReplicationTasksStorage.class;
+    }
+    if (URI_TASKS_STORAGE.equals(tasksStorage)) {
+      return UriReplicationTasksStorage.class;
+    }
+    if (KEY_VALUE_TASKS_STORAGE.equals(tasksStorage)) {
+      return KeyValueReplicationTasksStore.class;
+    }
+    return ReplicationTasksStorage.class;
+  }
+
   private Class<? extends ReplicationConfig> getReplicationConfigClass() {
     if (Files.exists(site.etc_dir.resolve("replication"))) {
       return FanoutReplicationConfig.class;
@@ -14,6 +14,7 @@
 
 package com.googlesource.gerrit.plugins.replication;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.auto.value.AutoValue;
@@ -35,8 +36,11 @@ import com.googlesource.gerrit.plugins.replication.ReplicationConfig.FilterType;
 import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
 import com.googlesource.gerrit.plugins.replication.events.ProjectDeletionState;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -44,6 +48,7 @@ import java.util.Set;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.transport.URIish;
 
 /** Manages automatic replication to remote repositories. */
@@ -55,6 +60,8 @@ public class ReplicationQueue
         HeadUpdatedListener {
   static final String REPLICATION_LOG_NAME = "replication_log";
   static final NamedFluentLogger repLog = NamedFluentLogger.forName(REPLICATION_LOG_NAME);
+  static final int DEFAULT_REPLAY_BATCH_SIZE = 10000;
+  static final long DEFAULT_DISTRIBUTION_POLL_INTERVAL_MS = 1000;
 
   private final ReplicationStateListener stateLog;
 
@@ -62,12 +69,14 @@ public class ReplicationQueue
   private final WorkQueue workQueue;
   private final DynamicItem<EventDispatcher> dispatcher;
   private final Provider<ReplicationDestinations> destinations; // For Guice circular dependency
-  private final ReplicationTasksStorage replicationTasksStorage;
+  private final ReplicationTasksStore replicationTasksStorage;
   private final ProjectDeletionState.Factory projectDeletionStateFactory;
   private volatile boolean running;
   private final AtomicBoolean replaying = new AtomicBoolean();
   private final Queue<ReferenceUpdatedEvent> beforeStartupEventsQueue;
   private Distributor distributor;
+  private volatile ReferenceUpdatedEventHandoff eventHandoff;
+  private volatile WaitingTasksWatcher waitingTasksWatcher;
 
   @Inject
   ReplicationQueue(
@@ -76,7 +85,7 @@ public class ReplicationQueue
       Provider<ReplicationDestinations> rd,
       DynamicItem<EventDispatcher> dis,
       ReplicationStateListeners sl,
-      ReplicationTasksStorage rts,
+      ReplicationTasksStore rts,
       ProjectDeletionState.Factory pd) {
     replConfig = rc;
     workQueue = wq;
@@ -94,15 +103,26 @@ public class ReplicationQueue
       destinations.get().startup(workQueue);
       running = true;
       replicationTasksStorage.recoverAll();
+      startWaitingTasksWatcher();
       firePendingEvents();
       fireBeforeStartupEvents();
       distributor = new Distributor(workQueue);
+      startEventHandoff();
     }
   }
 
   @Override
   public void stop() {
     running = false;
+    ReferenceUpdatedEventHandoff handoff = eventHandoff;
+    eventHandoff = null;
+    if (handoff != null) {
+      handoff.stop();
+    }
+    if (waitingTasksWatcher != null) {
+      waitingTasksWatcher.stop();
+      waitingTasksWatcher = null;
+    }
     distributor.stop();
     int discarded = destinations.get().shutdown();
     if (discarded > 0) {
@@ -127,21 +147,113 @@ public class ReplicationQueue
 
   @Override
   public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    ReferenceUpdatedEventHandoff handoff = eventHandoff;
+    if (handoff != null
+        && handoff.offer(
+            ReferenceUpdatedEvent.create(event.getProjectName(), event.getRefName()))) {
+      return;
+    }
     fire(event.getProjectName(), event.getRefName());
   }
 
+  /**
+   * Unless disabled, persisting and scheduling the tasks of reference updated events is handed
+   * over to a dedicated thread, so that the thread delivering the event does not wait for the
+   * tasks storage.
+   */
+  private void startEventHandoff() {
+    int capacity = replConfig.getConfig().getInt("replication", "eventQueueSize", 0);
+    if (capacity > 0) {
+      eventHandoff =
+          new ReferenceUpdatedEventHandoff(
+              capacity, replConfig.getEventsDirectory().resolve("overflow"), this::fire);
+      eventHandoff.start(workQueue.createQueue(1, "Replication Event Writer", false));
+    }
+  }
+
+  /**
+   * Starts watching the waiting tasks created by other nodes, unless they are found by the
+   * distributor scanning all the waiting tasks. Started before replaying the waiting tasks, so that
+   * no task created meanwhile is missed.
+   */
+  private void startWaitingTasksWatcher() {
+    Config config = replConfig.getConfig();
+    WaitingTasksWatcher.Mode mode =
+        config.getEnum("replication", null, "distributionMode", WaitingTasksWatcher.Mode.SCAN);
+    if (mode == WaitingTasksWatcher.Mode.SCAN) {
+      return;
+    }
+    Optional<WaitingTasksWatcher> watcher =
+        replicationTasksStorage.newWaitingTasksWatcher(this::fireWaiting);
+    if (!watcher.isPresent()) {
+      repLog.atWarning().log(
+          "replication.distributionMode %s needs a shared file tasks storage, ignoring it", mode);
+      return;
+    }
+    long pollIntervalMs =
+        mode == WaitingTasksWatcher.Mode.POLL
+            ? config.getTimeUnit(
+                "replication",
+                null,
+                "distributionPollInterval",
+                DEFAULT_DISTRIBUTION_POLL_INTERVAL_MS,
+                MILLISECONDS)
+            : SECONDS.toMillis(replConfig.getDistributionInterval());
+    waitingTasksWatcher = watcher.get();
+    waitingTasksWatcher.start(
+        workQueue.createQueue(1, "Replication Waiting Tasks Watcher", false),
+        mode,
+        Math.max(1, pollIntervalMs));
+  }
+
+  private void fireWaiting(ReplicateRefUpdate update) {
+    try {
+      fire(
+          new URIish(update.uri()),
+          Project.nameKey(update.project()),
+          Collections.singletonList(update.ref()));
+    } catch (URISyntaxException e) {
+      repLog.atSevere().withCause(e).log("Encountered malformed URI for waiting task %s", update);
+    }
+  }
+
   private void fire(String projectName, String refName) {
     ReplicationState state = new ReplicationState(new GitUpdateProcessing(dispatcher.get()));
     fire(Project.nameKey(projectName), null, refName, state, false);
     state.markAllPushTasksScheduled();
   }
 
+  /** Fires a batch of reference updated events, creating the tasks of all of them at once. */
+  private void fire(List<ReferenceUpdatedEvent> events) {
+    PushBatch batch = new PushBatch();
+    List<ReplicationState> states = new ArrayList<>(events.size());
+    for (ReferenceUpdatedEvent e : events) {
+      ReplicationState state = new ReplicationState(new GitUpdateProcessing(dispatcher.get()));
+      fire(Project.nameKey(e.projectName()), null, e.refName(), state, false, batch);
+      states.add(state);
+    }
+    batch.schedule();
+    states.forEach(ReplicationState::markAllPushTasksScheduled);
+  }
+
   private void fire(
       Project.NameKey project,
       String urlMatch,
       String refName,
       ReplicationState state,
       boolean now) {
+    PushBatch batch = new PushBatch();
+    fire(project, urlMatch, refName, state, now, batch);
+    batch.schedule();
+  }
+
+  private void fire(
+      Project.NameKey project,
+      String urlMatch,
+      String refName,
+      ReplicationState state,
+      boolean now,
+      PushBatch batch) {
     if (!running) {
       stateLog.warn(
           "Replication plugin did not finish startup before event, event replication is postponed",
@@ -151,76 +263,102 @@ public class ReplicationQueue
     }
 
     for (Destination cfg : destinations.get().getAll(FilterType.ALL)) {
-      pushReference(cfg, project, urlMatch, refName, state, now);
+      batch.add(cfg, project, urlMatch, refName, state, now);
     }
   }
 
-  private void fire(URIish uri, Project.NameKey project, String refName) {
+  private void fire(URIish uri, Project.NameKey project, List<String> refNames) {
     ReplicationState state = new ReplicationState(new GitUpdateProcessing(dispatcher.get()));
-    for (Destination dest : destinations.get().getDestinations(uri, project, refName)) {
-      dest.schedule(project, refName, uri, state);
+    for (Destination dest : destinations.get().getAll(FilterType.ALL)) {
+      if (dest.wouldPush(uri, project)) {
+        for (String refName : refNames) {
+          if (dest.wouldPushRef(refName)) {
+            dest.schedule(project, refName, uri, state);
+          }
+        }
+      }
     }
     state.markAllPushTasksScheduled();
   }
 
   @UsedAt(UsedAt.Project.COLLABNET)
   public void pushReference(Destination cfg, Project.NameKey project, String refName) {
-    pushReference(cfg, project, null, refName, null, true);
+    ReplicationState state = new ReplicationState(new GitUpdateProcessing(dispatcher.get()));
+    PushBatch batch = new PushBatch();
+    batch.add(cfg, project, null, refName, state, true);
+    batch.schedule();
+    state.markAllPushTasksScheduled();
   }
 
-  private void pushReference(
-      Destination cfg,
-      Project.NameKey project,
-      String urlMatch,
-      String refName,
-      ReplicationState state,
-      boolean now) {
-    boolean withoutState = state == null;
-    if (withoutState) {
-      state = new ReplicationState(new GitUpdateProcessing(dispatcher.get()));
-    }
-    if (cfg.wouldPushProject(project) && cfg.wouldPushRef(refName)) {
+  /**
+   * Pushes of a ref update to every URI of the remotes replicating it. Their tasks are all created
+   * at once before the pushes are scheduled, so that the tasks storage forces its writes once for
+   * the whole batch rather than once per URI.
+   */
+  private class PushBatch {
+    private final List<ReplicateRefUpdate> tasks = new ArrayList<>();
+    private final List<Runnable> pushes = new ArrayList<>();
+
+    void add(
+        Destination cfg,
+        Project.NameKey project,
+        String urlMatch,
+        String refName,
+        ReplicationState state,
+        boolean now) {
+      if (!cfg.wouldPushProject(project) || !cfg.wouldPushRef(refName)) {
+        repLog.atFine().log("Skipping ref %s on project %s", refName, project.get());
+        return;
+      }
       for (URIish uri : cfg.getURIs(project, urlMatch)) {
-        replicationTasksStorage.create(
+        tasks.add(
             ReplicateRefUpdate.create(project.get(), refName, uri, cfg.getRemoteConfigName()));
-        cfg.schedule(project, refName, uri, state, now);
+        pushes.add(() -> cfg.schedule(project, refName, uri, state, now));
       }
-    } else {
-      repLog.atFine().log("Skipping ref %s on project %s", refName, project.get());
     }
-    if (withoutState) {
-      state.markAllPushTasksScheduled();
+
+    void schedule() {
+      if (!tasks.isEmpty()) {
+        replicationTasksStorage.createAll(tasks);
+      }
+      pushes.forEach(Runnable::run);
     }
   }
 
   private void firePendingEvents() {
     if (replaying.compareAndSet(false, true)) {
-      new ChainedScheduler.StreamScheduler<>(
-          workQueue.getDefaultQueue(),
-          replicationTasksStorage.streamWaiting(),
-          new ChainedScheduler.Runner<ReplicationTasksStorage.ReplicateRefUpdate>() {
-            @Override
-            public void run(ReplicationTasksStorage.ReplicateRefUpdate u) {
-              try {
-                fire(new URIish(u.uri()), Project.nameKey(u.project()), u.ref());
-              } catch (URISyntaxException e) {
-                repLog.atSevere().withCause(e).log(
-                    "Encountered malformed URI for persisted event %s", u);
-              } catch (Throwable e) {
-                repLog.atSevere().withCause(e).log("Unexpected error while firing pending events");
-              }
-            }
-
-            @Override
-            public void onDone() {
-              replaying.set(false);
-            }
-
-            @Override
-            public String toString(ReplicationTasksStorage.ReplicateRefUpdate u) {
-              return "Scheduling push to " + String.format("%s:%s", u.project(), u.ref());
-            }
-          });
+      Config config = replConfig.getConfig();
+      int batchSize = config.getInt("replication", "replayBatchSize", DEFAULT_REPLAY_BATCH_SIZE);
+      int threads = config.getInt("replication", "replayThreads", 1);
+      new PendingTasksReplay(
+              replicationTasksStorage.streamWaiting(),
+              replicationTasksStorage.waitingCount(),
+              Math.max(1, batchSize),
+              new ChainedScheduler.Runner<PendingTasksReplay.Group>() {
+                @Override
+                public void run(PendingTasksReplay.Group g) {
+                  try {
+                    fire(new URIish(g.uri()), Project.nameKey(g.project()), g.refs());
+                  } catch (URISyntaxException e) {
+                    repLog.atSevere().withCause(e).log(
+                        "Encountered malformed URI for persisted events %s", g);
+                  } catch (Throwable e) {
+                    repLog.atSevere().withCause(e).log(
+                        "Unexpected error while firing pending events");
+                  }
+                }
+
+                @Override
+                public void onDone() {
+                  replaying.set(false);
+                }
+
+                @Override
+                public String toString(PendingTasksReplay.Group g) {
+                  return "Scheduling push to " + g;
+                }
+              })
+          .start(workQueue.getDefaultQueue(), Math.max(1, threads));
     }
   }
 
@@ -310,7 +448,9 @@ public class ReplicationQueue
         return;
       }
       try {
-        firePendingEvents();
+        if (waitingTasksWatcher == null) {
+          firePendingEvents();
+        }
         pruneCompleted();
       } catch (Exception e) {
         repLog.atSevere().withCause(e).log("error distributing tasks");
@@ -326,6 +466,7 @@ public class ReplicationQueue
       if (executor != null) {
         cancel();
         executor.getQueue().remove(this);
+        executor.shutdown();
       }
     }
 
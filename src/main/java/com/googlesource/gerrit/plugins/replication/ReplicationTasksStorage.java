@@ -17,9 +17,10 @@ package com.googlesource.gerrit.plugins.replication;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.flogger.FluentLogger;
-import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
@@ -32,12 +33,23 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.sha1.SHA1;
 
 /**
  * A persistent store for replication tasks.
@@ -53,17 +65,37 @@ import org.eclipse.jgit.transport.URIish;
  *
  * <p><code>
  *   .../building/<tmp_name>                       new replication tasks under construction
- *   .../running/<sha1>                            running replication tasks
- *   .../waiting/<task_sha1>  outstanding replication tasks
+ *   .../running/<sha1[0..1]>/<sha1>               running replication tasks
+ *   .../waiting/<sha1[0..1]>/<sha1>               outstanding replication tasks
  * </code>
  *
+ * <p>Tasks stored directly under running/ and waiting/ by previous versions are moved into their
+ * sub-directory by {@link #recoverAll()}.
+ *
  * <p>Tasks are moved atomically via a rename between those directories to indicate the current
  * state of each task.
+ *
+ * <p>Unless other nodes may be sharing the store, the keys of the waiting and running tasks are
+ * also indexed in memory. The index is loaded from the directories on first use and on {@link
+ * #recoverAll()}, and is then kept up to date by every state change of this process.
+ *
+ * <p>Changes to a task are serialized by a lock striped on its key, so that tasks of different
+ * destinations and projects can be created, started and finished concurrently.
  */
 @Singleton
-public class ReplicationTasksStorage {
+public class ReplicationTasksStorage implements ReplicationTasksStore {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+  private static final int SHARD_PREFIX_LENGTH = 2;
+  private static final int TASK_LOCK_STRIPES = 64;
+  private static final ThreadLocal<SHA1> SHA1_DIGEST = ThreadLocal.withInitial(SHA1::newInstance);
+
+  /** Format in which new task files are written. Files in either format can always be read. */
+  public enum RecordFormat {
+    JSON,
+    BINARY
+  }
+
   @AutoValue
   public abstract static class ReplicateRefUpdate {
     public static Optional<ReplicateRefUpdate> createOptionally(Path file, Gson gson) {
@@ -78,13 +110,19 @@ public class ReplicationTasksStorage {
     }
 
     public static ReplicateRefUpdate create(Path file, Gson gson) throws IOException {
-      String json = new String(Files.readAllBytes(file), UTF_8);
-      return gson.fromJson(json, ReplicateRefUpdate.class);
+      byte[] record = Files.readAllBytes(file);
+      if (ReplicateRefUpdateCodec.isBinary(record)) {
+        return ReplicateRefUpdateCodec.decode(record);
+      }
+      return gson.fromJson(new String(record, UTF_8), ReplicateRefUpdate.class);
     }
 
     public static ReplicateRefUpdate create(String project, String ref, URIish uri, String remote) {
-      return new AutoValue_ReplicationTasksStorage_ReplicateRefUpdate(
-          project, ref, uri.toASCIIString(), remote);
+      return create(project, ref, uri.toASCIIString(), remote);
+    }
+
+    static ReplicateRefUpdate create(String project, String ref, String uri, String remote) {
+      return new AutoValue_ReplicationTasksStorage_ReplicateRefUpdate(project, ref, uri, remote);
     }
 
     public abstract String project();
@@ -95,9 +133,10 @@ public class ReplicationTasksStorage {
 
     public abstract String remote();
 
+    /** Returns the key of the task, computed once per instance. */
+    @Memoized
     public String sha1() {
-      return ReplicationTasksStorage.sha1(project() + "\n" + ref() + "\n" + uri() + "\n" + remote())
-          .name();
+      return ReplicationTasksStorage.sha1(project(), ref(), uri(), remote()).name();
     }
 
     @Override
@@ -111,66 +150,376 @@ public class ReplicationTasksStorage {
   }
 
   private final Gson gson;
+  private final RecordFormat recordFormat;
 
   private final Path buildingUpdates;
   private final Path runningUpdates;
   private final Path waitingUpdates;
+  private volatile boolean dirsCreated;
+  private final Set<Path> createdShardDirs = ConcurrentHashMap.newKeySet();
+
+  // Keys of the tasks this process knows to be waiting or running. When the store is not shared
+  // with other nodes, this index is authoritative and avoids probing the filesystem.
+  private final boolean sharedStorage;
+  private final Set<String> waitingKeys = ConcurrentHashMap.newKeySet();
+  private final Set<String> runningKeys = ConcurrentHashMap.newKeySet();
+  // The remote of the indexed tasks, learnt when they are created or read once for the gauges.
+  private final Map<String, String> remotes = new ConcurrentHashMap<>();
+  private volatile boolean indexLoaded;
+
+  private final Striped<Lock> taskLocks = Striped.lock(TASK_LOCK_STRIPES);
+  private final ReadWriteLock recoveryLock = new ReentrantReadWriteLock();
 
   @Inject
   ReplicationTasksStorage(ReplicationConfig config) {
-    this(config.getEventsDirectory().resolve("ref-updates"));
+    this(
+        config.getEventsDirectory().resolve("ref-updates"),
+        isShared(config),
+        config.getConfig().getEnum("replication", null, "taskFormat", RecordFormat.JSON));
   }
 
   @VisibleForTesting
   public ReplicationTasksStorage(Path refUpdates) {
+    this(refUpdates, true);
+  }
+
+  @VisibleForTesting
+  public ReplicationTasksStorage(Path refUpdates, boolean sharedStorage) {
+    this(refUpdates, sharedStorage, RecordFormat.JSON);
+  }
+
+  @VisibleForTesting
+  public ReplicationTasksStorage(
+      Path refUpdates, boolean sharedStorage, RecordFormat recordFormat) {
     buildingUpdates = refUpdates.resolve("building");
     runningUpdates = refUpdates.resolve("running");
     waitingUpdates = refUpdates.resolve("waiting");
+    this.sharedStorage = sharedStorage;
+    this.recordFormat = recordFormat;
     gson =
         new GsonBuilder().registerTypeAdapterFactory(AutoValueTypeAdapterFactory.create()).create();
   }
 
-  public synchronized String create(ReplicateRefUpdate r) {
-    return new Task(r).create();
+  /**
+   * Other nodes may only be writing to the same store when the distributor is enabled, as
+   * otherwise their tasks would never be picked up.
+   */
+  private static boolean isShared(ReplicationConfig config) {
+    return config.getDistributionInterval() > 0;
+  }
+
+  @Override
+  public String create(ReplicateRefUpdate r) {
+    Task t = new Task(r);
+    Lock lock = lockKey(t.taskKey);
+    try {
+      if (sharedStorage) {
+        return t.create();
+      }
+      loadIndex();
+      if (!waitingKeys.contains(t.taskKey) && t.write()) {
+        waitingKeys.add(t.taskKey);
+        remotes.put(t.taskKey, r.remote());
+      }
+      return t.taskKey;
+    } finally {
+      unlock(lock);
+    }
   }
 
-  public synchronized Set<String> start(UriUpdates uriUpdates) {
+  @Override
+  public Set<String> start(UriUpdates uriUpdates) {
+    loadIndex();
     Set<String> startedRefs = new HashSet<>();
     for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
       Task t = new Task(update);
-      if (t.start()) {
-        startedRefs.add(t.update.ref());
+      Lock lock = lockKey(t.taskKey);
+      try {
+        if (!isIndexedAs(waitingKeys, t)) {
+          continue;
+        }
+        if (t.start()) {
+          waitingKeys.remove(t.taskKey);
+          runningKeys.add(t.taskKey);
+          startedRefs.add(t.update.ref());
+        } else if (!t.isWaiting()) {
+          waitingKeys.remove(t.taskKey);
+        }
+      } finally {
+        unlock(lock);
       }
     }
     return startedRefs;
   }
 
-  public synchronized void reset(UriUpdates uriUpdates) {
+  @Override
+  public void reset(UriUpdates uriUpdates) {
+    loadIndex();
     for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
-      new Task(update).reset();
+      Task t = new Task(update);
+      Lock lock = lockKey(t.taskKey);
+      try {
+        if (!isIndexedAs(runningKeys, t)) {
+          continue;
+        }
+        if (t.reset()) {
+          runningKeys.remove(t.taskKey);
+          waitingKeys.add(t.taskKey);
+        } else if (!t.isRunning()) {
+          runningKeys.remove(t.taskKey);
+        }
+      } finally {
+        unlock(lock);
+      }
     }
   }
 
-  public synchronized void recoverAll() {
-    streamRunning().forEach(r -> new Task(r).recover());
+  @Override
+  public void recoverAll() {
+    exclusively(
+        () -> {
+          migrateFlatLayout();
+          List<String> running = listKeys(createDir(runningUpdates));
+          running.forEach(this::recover);
+          logger.atFine().log("Recovered %d running tasks", running.size());
+          indexLoaded = false;
+          loadIndex();
+        });
   }
 
+  /** Moves a running task back to waiting by its key, without reading the task. */
+  private void recover(String taskKey) {
+    Path running = shard(runningUpdates, taskKey);
+    Path waiting = shard(waitingUpdates, taskKey);
+    try {
+      logger.atFine().log("RENAME %s to %s", running, waiting);
+      createShardDir(waiting.getParent());
+      Files.move(
+          running, waiting, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (NoSuchFileException e) {
+      logger.atFine().log("Running task %s already moved", taskKey);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while recovering task %s", taskKey);
+    }
+  }
+
+  /** Returns the number of waiting tasks, without reading them. */
+  @Override
+  public long waitingCount() {
+    if (!sharedStorage) {
+      loadIndex();
+      return waitingKeys.size();
+    }
+    return listKeys(createDir(waitingUpdates)).size();
+  }
+
+  /** Without sharing, counts the indexed tasks, only reading those whose remote is not known. */
+  @Override
+  public Map<String, Long> waitingCountsByRemote() {
+    if (sharedStorage) {
+      return ReplicationTasksStore.super.waitingCountsByRemote();
+    }
+    loadIndex();
+    return countByRemote(waitingKeys, waitingUpdates);
+  }
+
+  @Override
+  public Map<String, Long> runningCountsByRemote() {
+    if (sharedStorage) {
+      return ReplicationTasksStore.super.runningCountsByRemote();
+    }
+    loadIndex();
+    return countByRemote(runningKeys, runningUpdates);
+  }
+
+  private Map<String, Long> countByRemote(Set<String> keys, Path stateDir) {
+    Map<String, Long> counts = new HashMap<>();
+    for (String key : keys) {
+      String remote = remotes.get(key);
+      if (remote == null) {
+        Optional<ReplicateRefUpdate> update =
+            ReplicateRefUpdate.createOptionally(shard(stateDir, key), gson);
+        if (!update.isPresent()) {
+          continue;
+        }
+        remote = update.get().remote();
+        remotes.put(key, remote);
+      }
+      counts.merge(remote, 1L, Long::sum);
+    }
+    return counts;
+  }
+
+  @Override
+  public long buildingCount() {
+    return countFiles(createDir(buildingUpdates));
+  }
+
+  @Override
+  public Optional<WaitingTasksWatcher> newWaitingTasksWatcher(
+      Consumer<ReplicateRefUpdate> listener) {
+    if (!sharedStorage) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new WaitingTasksWatcher(
+            createDir(waitingUpdates),
+            file -> ReplicateRefUpdate.createOptionally(file, gson),
+            listener));
+  }
+
+  @Override
   public boolean isWaiting(UriUpdates uriUpdates) {
+    if (sharedStorage) {
+      return uriUpdates.getReplicateRefUpdates().stream()
+          .map(update -> new Task(update))
+          .anyMatch(Task::isWaiting);
+    }
+    loadIndex();
     return uriUpdates.getReplicateRefUpdates().stream()
-        .map(update -> new Task(update))
-        .anyMatch(Task::isWaiting);
+        .anyMatch(update -> waitingKeys.contains(update.sha1()));
   }
 
+  @Override
   public void finish(UriUpdates uriUpdates) {
+    loadIndex();
     for (ReplicateRefUpdate update : uriUpdates.getReplicateRefUpdates()) {
-      new Task(update).finish();
+      Task t = new Task(update);
+      Lock lock = lockKey(t.taskKey);
+      try {
+        if (isIndexedAs(runningKeys, t)) {
+          t.finish();
+          runningKeys.remove(t.taskKey);
+          if (!waitingKeys.contains(t.taskKey)) {
+            remotes.remove(t.taskKey);
+          }
+        }
+      } finally {
+        unlock(lock);
+      }
     }
   }
 
+  /**
+   * Locks the stripe of a task key, so that changes of the same task are serialized while tasks in
+   * other stripes move through the store concurrently. Also excludes a concurrent {@link
+   * #recoverAll()}, which moves every running task.
+   */
+  Lock lockKey(String taskKey) {
+    recoveryLock.readLock().lock();
+    Lock lock = taskLocks.get(taskKey);
+    lock.lock();
+    return lock;
+  }
+
+  void unlock(Lock taskLock) {
+    taskLock.unlock();
+    recoveryLock.readLock().unlock();
+  }
+
+  /** Runs an action while no task is being changed, as {@link #recoverAll()} does. */
+  void exclusively(Runnable action) {
+    recoveryLock.writeLock().lock();
+    try {
+      action.run();
+    } finally {
+      recoveryLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Whether the task may be in the state of the given index. Without sharing, the index is
+   * authoritative, otherwise only the filesystem can tell.
+   */
+  private boolean isIndexedAs(Set<String> index, Task t) {
+    return sharedStorage || index.contains(t.taskKey);
+  }
+
+  private void loadIndex() {
+    if (sharedStorage || indexLoaded) {
+      return;
+    }
+    synchronized (this) {
+      if (!indexLoaded) {
+        waitingKeys.clear();
+        runningKeys.clear();
+        listKeys(createDir(waitingUpdates)).forEach(waitingKeys::add);
+        listKeys(createDir(runningUpdates)).forEach(runningKeys::add);
+        remotes.keySet().removeIf(k -> !waitingKeys.contains(k) && !runningKeys.contains(k));
+        indexLoaded = true;
+        logger.atFine().log(
+            "Loaded %d waiting and %d running tasks", waitingKeys.size(), runningKeys.size());
+      }
+    }
+  }
+
+  private static List<String> listKeys(Path dir) {
+    try (Stream<Path> files = walkNonDirs(dir)) {
+      return files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+    }
+  }
+
+  static long countFiles(Path dir) {
+    try (Stream<Path> files = walkNonDirs(dir)) {
+      return files.count();
+    }
+  }
+
+  private void createDirs() {
+    if (!dirsCreated) {
+      createDir(buildingUpdates);
+      createDir(runningUpdates);
+      createDir(waitingUpdates);
+      dirsCreated = true;
+    }
+  }
+
+  /**
+   * Returns the path of a task in a state directory. Like loose git objects, tasks are fanned out
+   * into sub-directories named after the first two characters of their key, so that no single
+   * directory holds a very large number of tasks.
+   */
+  static Path shard(Path stateDir, String taskKey) {
+    return stateDir.resolve(taskKey.substring(0, SHARD_PREFIX_LENGTH)).resolve(taskKey);
+  }
+
+  void createShardDir(Path shardDir) throws IOException {
+    if (!createdShardDirs.contains(shardDir)) {
+      Files.createDirectories(shardDir);
+      createdShardDirs.add(shardDir);
+    }
+  }
+
+  /** Moves tasks written with the flat layout of previous versions into their shard. */
+  void migrateFlatLayout() {
+    for (Path stateDir : new Path[] {waitingUpdates, runningUpdates}) {
+      List<Path> flatTasks;
+      try (Stream<Path> files = Files.list(createDir(stateDir))) {
+        flatTasks = files.filter(Files::isRegularFile).collect(Collectors.toList());
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Error while listing tasks in %s", stateDir);
+        continue;
+      }
+      for (Path file : flatTasks) {
+        try {
+          Path sharded = shard(stateDir, file.getFileName().toString());
+          logger.atFine().log("MIGRATE %s to %s", file, sharded);
+          createShardDir(sharded.getParent());
+          Files.move(
+              file, sharded, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+          logger.atSevere().withCause(e).log("Error while migrating task %s", file);
+        }
+      }
+    }
+  }
+
+  @Override
   public Stream<ReplicateRefUpdate> streamWaiting() {
     return streamRecursive(createDir(waitingUpdates));
   }
 
+  @Override
   public Stream<ReplicateRefUpdate> streamRunning() {
     return streamRecursive(createDir(runningUpdates));
   }
@@ -182,7 +531,7 @@ public class ReplicationTasksStorage {
         .map(Optional::get);
   }
 
-  private static Stream<Path> walkNonDirs(Path path) {
+  static Stream<Path> walkNonDirs(Path path) {
     try {
       return Files.list(path).flatMap(sub -> walkNonDirs(sub));
     } catch (NotDirectoryException e) {
@@ -193,12 +542,52 @@ public class ReplicationTasksStorage {
     }
   }
 
-  @SuppressWarnings("deprecation")
-  private static ObjectId sha1(String s) {
-    return ObjectId.fromRaw(Hashing.sha1().hashString(s, UTF_8).asBytes());
+  /**
+   * Returns the SHA-1 of the UTF-8 encoding of the fields joined with '\n'.
+   *
+   * <p>The fields are hashed incrementally by a digest reused by the calling thread, so that
+   * neither the joined string nor its encoding are allocated. Unpaired surrogates are hashed as
+   * '?', like {@link String#getBytes(java.nio.charset.Charset)} encodes them.
+   */
+  static ObjectId sha1(String... fields) {
+    SHA1 md = SHA1_DIGEST.get();
+    md.reset();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        md.update((byte) '\n');
+      }
+      updateUtf8(md, fields[i]);
+    }
+    return md.toObjectId();
+  }
+
+  private static void updateUtf8(SHA1 md, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        md.update((byte) c);
+      } else if (c < 0x800) {
+        md.update((byte) (0xc0 | (c >> 6)));
+        md.update((byte) (0x80 | (c & 0x3f)));
+      } else if (!Character.isSurrogate(c)) {
+        md.update((byte) (0xe0 | (c >> 12)));
+        md.update((byte) (0x80 | ((c >> 6) & 0x3f)));
+        md.update((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        md.update((byte) (0xf0 | (cp >> 18)));
+        md.update((byte) (0x80 | ((cp >> 12) & 0x3f)));
+        md.update((byte) (0x80 | ((cp >> 6) & 0x3f)));
+        md.update((byte) (0x80 | (cp & 0x3f)));
+      } else {
+        md.update((byte) '?');
+      }
+    }
   }
 
-  private static Path createDir(Path dir) {
+  static Path createDir(Path dir) {
     try {
       return Files.createDirectories(dir);
     } catch (IOException e) {
@@ -216,8 +605,9 @@ public class ReplicationTasksStorage {
     public Task(ReplicateRefUpdate update) {
       this.update = update;
       taskKey = update.sha1();
-      running = createDir(runningUpdates).resolve(taskKey);
-      waiting = createDir(waitingUpdates).resolve(taskKey);
+      createDirs();
+      running = shard(runningUpdates, taskKey);
+      waiting = shard(waitingUpdates, taskKey);
     }
 
     public String create() {
@@ -225,35 +615,62 @@ public class ReplicationTasksStorage {
         return taskKey;
       }
 
-      String json = gson.toJson(update) + "\n";
+      write();
+      return taskKey;
+    }
+
+    /** Writes the task as waiting, regardless of whether it already exists. */
+    boolean write() {
       try {
-        Path tmp = Files.createTempFile(createDir(buildingUpdates), taskKey, null);
+        Path tmp = Files.createTempFile(buildingUpdates, taskKey, null);
         logger.atFine().log("CREATE %s %s", tmp, updateLog());
-        Files.write(tmp, json.getBytes(UTF_8));
+        Files.write(tmp, encode());
         logger.atFine().log("RENAME %s %s %s", tmp, waiting, updateLog());
-        rename(tmp, waiting);
+        return rename(tmp, waiting);
       } catch (IOException e) {
-        logger.atWarning().withCause(e).log("Couldn't create task %s", json);
+        logger.atWarning().withCause(e).log("Couldn't create task %s", update);
+        return false;
       }
-      return taskKey;
+    }
+
+    private byte[] encode() {
+      if (recordFormat == RecordFormat.BINARY) {
+        return ReplicateRefUpdateCodec.encode(update);
+      }
+      return (gson.toJson(update) + "\n").getBytes(UTF_8);
     }
 
     public boolean start() {
       return rename(waiting, running);
     }
 
-    public void reset() {
-      rename(running, waiting);
+    public boolean reset() {
+      if (!rename(running, waiting)) {
+        return false;
+      }
+      if (sharedStorage) {
+        // The rename keeps the modification time, by which the other nodes notice the reset.
+        try {
+          Files.setLastModifiedTime(waiting, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Couldn't touch reset task %s", taskKey);
+        }
+      }
+      return true;
     }
 
-    public void recover() {
-      rename(running, waiting);
+    public boolean recover() {
+      return rename(running, waiting);
     }
 
     public boolean isWaiting() {
       return Files.exists(waiting);
     }
 
+    public boolean isRunning() {
+      return Files.exists(running);
+    }
+
     public void finish() {
       try {
         logger.atFine().log("DELETE %s %s", running, updateLog());
@@ -266,6 +683,7 @@ public class ReplicationTasksStorage {
     private boolean rename(Path from, Path to) {
       try {
         logger.atFine().log("RENAME %s to %s %s", from, to, updateLog());
+        createShardDir(to.getParent());
         Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         return true;
       } catch (IOException e) {
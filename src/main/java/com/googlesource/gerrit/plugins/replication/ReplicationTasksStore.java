@@ -0,0 +1,117 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Persists the replication tasks, so that they survive restarts of the plugin.
+ *
+ * <p>A task is created as waiting for each ref update to push to a URI of a remote. It is started
+ * when a push including it begins, and is then either finished or reset to waiting. Tasks left
+ * running by a previous process are reset by {@link #recoverAll()}.
+ *
+ * <p>The backend is selected with the replication.tasksStorage option and bound in {@link
+ * ReplicationModule}. Every backend must pass {@code ReplicationTasksStorageTest}.
+ */
+public interface ReplicationTasksStore {
+  /**
+   * Creates a waiting task, unless it is already waiting.
+   *
+   * @return the key of the task.
+   */
+  String create(ReplicateRefUpdate r);
+
+  /**
+   * Creates the waiting tasks of several ref updates. Backends which force their writes to disk
+   * persist them all before forcing once.
+   */
+  default void createAll(Collection<ReplicateRefUpdate> updates) {
+    updates.forEach(this::create);
+  }
+
+  /**
+   * Starts the waiting tasks of a push.
+   *
+   * @return the refs whose task was waiting and is now running.
+   */
+  Set<String> start(UriUpdates uriUpdates);
+
+  /** Moves the running tasks of a push back to waiting. */
+  void reset(UriUpdates uriUpdates);
+
+  /** Moves all the running tasks back to waiting, typically when the plugin starts. */
+  void recoverAll();
+
+  /** Whether any task of a push is waiting. */
+  boolean isWaiting(UriUpdates uriUpdates);
+
+  /** Removes the running tasks of a completed push. */
+  void finish(UriUpdates uriUpdates);
+
+  Stream<ReplicateRefUpdate> streamWaiting();
+
+  Stream<ReplicateRefUpdate> streamRunning();
+
+  /** Returns the number of waiting tasks. */
+  long waitingCount();
+
+  /**
+   * Returns the number of waiting tasks of each remote. Backends which index their tasks in memory
+   * count them without reading the whole store.
+   */
+  default Map<String, Long> waitingCountsByRemote() {
+    try (Stream<ReplicateRefUpdate> waiting = streamWaiting()) {
+      return countByRemote(waiting);
+    }
+  }
+
+  /** Returns the number of running tasks of each remote. */
+  default Map<String, Long> runningCountsByRemote() {
+    try (Stream<ReplicateRefUpdate> running = streamRunning()) {
+      return countByRemote(running);
+    }
+  }
+
+  static Map<String, Long> countByRemote(Stream<ReplicateRefUpdate> updates) {
+    return updates.collect(groupingBy(ReplicateRefUpdate::remote, counting()));
+  }
+
+  /** Returns the number of tasks being written, which are neither waiting nor running yet. */
+  default long buildingCount() {
+    return 0;
+  }
+
+  /**
+   * Creates a watcher of the waiting tasks which other nodes sharing the store create.
+   *
+   * @param listener called for each waiting task created by another node.
+   * @return empty if the store is not shared, or the tasks of other nodes can only be found by
+   *     {@link #streamWaiting()}.
+   */
+  default Optional<WaitingTasksWatcher> newWaitingTasksWatcher(
+      Consumer<ReplicateRefUpdate> listener) {
+    return Optional.empty();
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Computes the delay before a push is retried after a transport error, or rescheduled after a
+ * collision with an in-flight push.
+ *
+ * <p>With the default {@code fixed} backoff and no jitter, a push is retried after {@code
+ * remote.NAME.replicationRetry}, as before. The {@code exponential} backoff doubles this delay at
+ * each retry of the push, up to {@code remote.NAME.replicationRetryMaxDelay}. The jitter spreads
+ * the retries of the pushes which failed together, so that they don't all reach the remote at the
+ * same time when it is back:
+ *
+ * <ul>
+ *   <li>{@code full} retries after a random delay between 0 and the backoff delay.
+ *   <li>{@code decorrelated} retries after a random delay between {@code replicationRetry} and 3
+ *       times the previous delay of the push, up to the maximum delay, whatever the backoff.
+ * </ul>
+ */
+public class RetryPolicy {
+  public enum Backoff {
+    FIXED,
+    EXPONENTIAL
+  }
+
+  public enum Jitter {
+    NONE,
+    FULL,
+    DECORRELATED
+  }
+
+  static final int DEFAULT_MAX_DELAY_MINUTES = 60;
+
+  static RetryPolicy fromConfig(Config cfg, String remoteName, int retryDelayMinutes) {
+    long base = MINUTES.toSeconds(retryDelayMinutes);
+    int maxMinutes =
+        cfg.getInt("remote", remoteName, "replicationRetryMaxDelay", DEFAULT_MAX_DELAY_MINUTES);
+    long max = MINUTES.toSeconds(maxMinutes);
+    return new RetryPolicy(
+        base,
+        Math.max(base, max),
+        cfg.getEnum("remote", remoteName, "retryBackoff", Backoff.FIXED),
+        cfg.getEnum("remote", remoteName, "retryJitter", Jitter.NONE));
+  }
+
+  private final long baseSeconds;
+  private final long maxSeconds;
+  private final Backoff backoff;
+  private final Jitter jitter;
+
+  RetryPolicy(long baseSeconds, long maxSeconds, Backoff backoff, Jitter jitter) {
+    this.baseSeconds = baseSeconds;
+    this.maxSeconds = maxSeconds;
+    this.backoff = backoff;
+    this.jitter = jitter;
+  }
+
+  /**
+   * Returns the delay before the next retry of a push.
+   *
+   * @param retryCount the number of retries of the push, including the next one.
+   * @param previousDelaySeconds the delay before the previous retry of the push, or 0 if none.
+   * @return the delay in seconds.
+   */
+  long retryDelaySeconds(int retryCount, long previousDelaySeconds) {
+    return retryDelaySeconds(retryCount, previousDelaySeconds, ThreadLocalRandom.current());
+  }
+
+  long retryDelaySeconds(int retryCount, long previousDelaySeconds, Random random) {
+    switch (jitter) {
+      case DECORRELATED:
+        long upper = Math.min(maxSeconds, 3 * Math.max(baseSeconds, previousDelaySeconds));
+        return between(random, baseSeconds, upper);
+      case FULL:
+        return between(random, 0, backoffSeconds(retryCount));
+      case NONE:
+      default:
+        return backoffSeconds(retryCount);
+    }
+  }
+
+  /**
+   * Returns the delay before a push colliding with an in-flight push is rescheduled. With a jitter,
+   * the delay is a random delay between the reschedule delay and twice this delay.
+   *
+   * @param rescheduleDelaySeconds the {@code remote.NAME.rescheduleDelay}.
+   * @return the delay in seconds.
+   */
+  long rescheduleDelaySeconds(long rescheduleDelaySeconds) {
+    if (jitter == Jitter.NONE) {
+      return rescheduleDelaySeconds;
+    }
+    return between(ThreadLocalRandom.current(), rescheduleDelaySeconds, 2 * rescheduleDelaySeconds);
+  }
+
+  private long backoffSeconds(int retryCount) {
+    if (backoff == Backoff.FIXED || retryCount <= 1) {
+      return baseSeconds;
+    }
+    if (baseSeconds == 0) {
+      return 0;
+    }
+    int shift = retryCount - 1;
+    if (shift >= Long.numberOfLeadingZeros(baseSeconds) - 1) {
+      // The delay would overflow.
+      return maxSeconds;
+    }
+    return Math.min(maxSeconds, baseSeconds << shift);
+  }
+
+  private static long between(Random random, long min, long max) {
+    if (max <= min) {
+      return min;
+    }
+    return min + (long) (random.nextDouble() * (max - min + 1));
+  }
+}
@@ -23,4 +23,22 @@ import org.eclipse.jgit.transport.URIish;
 public interface TransportFactory {
 
   Transport open(Repository local, URIish uri) throws NotSupportedException, TransportException;
+
+  /**
+   * Whether a transport returned by {@link #open(Repository, URIish)} was used by an earlier push,
+   * and may therefore have been closed by the remote while it was idle.
+   */
+  default boolean isReused(Transport tn) {
+    return false;
+  }
+
+  /**
+   * Releases a transport returned by {@link #open(Repository, URIish)}.
+   *
+   * @param tn the transport.
+   * @param reusable whether the transport can be used again, after a successful push.
+   */
+  default void release(Transport tn, boolean reusable) {
+    tn.close();
+  }
 }
@@ -0,0 +1,486 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A persistent store for replication tasks which keeps one record per push, rather than one file
+ * per ref.
+ *
+ * <p>All the refs of a project waiting to be pushed to the same URI of a remote are kept in a
+ * single record, just like they are consolidated into a single {@link PushOne}. Records live under
+ * <replication_data>/ref-updates/uri, in the same sharded layout as the tasks of {@link
+ * ReplicationTasksStorage}:
+ *
+ * <p><code>
+ *   .../uri/building/<tmp_name>                    new records under construction
+ *   .../uri/running/<sha1[0..1]>/<sha1>            running pushes
+ *   .../uri/waiting/<sha1[0..1]>/<sha1>            outstanding pushes
+ * </code>
+ *
+ * <p>A record holds the project, URI and remote on its first three lines, followed by one ref per
+ * line. Creating a task for a push which is already waiting appends its ref to the record, unless
+ * the record already has it, and starting, resetting and finishing a push renames or deletes its
+ * record as a whole. The refs of a waiting record are kept in memory once a task was created for
+ * it, so that creating the next task does not read the record back. A record is only rewritten
+ * when a push starts or finishes some of its refs only, or when a ref was partially appended to it
+ * before a crash.
+ *
+ * <p>Tasks left by {@link ReplicationTasksStorage} are imported by {@link #recoverAll()}. The
+ * records must not be shared between several processes.
+ */
+@Singleton
+public class UriReplicationTasksStorage extends ReplicationTasksStorage {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int HEADER_LINES = 3;
+
+  private final Path buildingPushes;
+  private final Path runningPushes;
+  private final Path waitingPushes;
+
+  /**
+   * The refs of the waiting records a task was created for, by push key. An entry is dropped
+   * whenever its record is changed by anything else than creating a task, and loaded again from
+   * the record by the next task created for it. Guarded by the lock of the key.
+   */
+  private final Map<String, Set<String>> waitingRefs = new ConcurrentHashMap<>();
+
+  @Inject
+  UriReplicationTasksStorage(ReplicationConfig config) {
+    this(config.getEventsDirectory().resolve("ref-updates"));
+  }
+
+  @VisibleForTesting
+  public UriReplicationTasksStorage(Path refUpdates) {
+    super(refUpdates, false);
+    Path pushes = refUpdates.resolve("uri");
+    buildingPushes = pushes.resolve("building");
+    runningPushes = pushes.resolve("running");
+    waitingPushes = pushes.resolve("waiting");
+  }
+
+  @Override
+  public String create(ReplicateRefUpdate r) {
+    String key = pushKey(r.project(), r.uri(), r.remote());
+    Lock lock = lockKey(key);
+    try {
+      Path waiting = shard(waitingPushes, key);
+      Set<String> refs = waitingRefs.get(key);
+      if (refs == null) {
+        refs = loadWaiting(waiting);
+      }
+      if (refs.isEmpty()) {
+        write(waiting, r.project(), r.uri(), r.remote(), ImmutableSet.of(r.ref()));
+      } else if (!refs.contains(r.ref())) {
+        logger.atFine().log("APPEND %s to %s", r.ref(), waiting);
+        Files.write(waiting, (r.ref() + "\n").getBytes(UTF_8), StandardOpenOption.APPEND);
+      }
+      refs.add(r.ref());
+      waitingRefs.put(key, refs);
+    } catch (IOException e) {
+      waitingRefs.remove(key);
+      logger.atWarning().withCause(e).log("Couldn't create task %s", r);
+    } finally {
+      unlock(lock);
+    }
+    return r.sha1();
+  }
+
+  @Override
+  public Set<String> start(UriUpdates uriUpdates) {
+    String key = pushKey(uriUpdates);
+    Lock lock = lockKey(key);
+    try {
+      waitingRefs.remove(key);
+      Path waiting = shard(waitingPushes, key);
+      Optional<Record> record = read(waiting);
+      if (!record.isPresent()) {
+        return ImmutableSet.of();
+      }
+      Set<String> started = new LinkedHashSet<>(record.get().refs);
+      started.retainAll(uriUpdates.getRefs());
+      if (started.isEmpty()) {
+        return ImmutableSet.of();
+      }
+      Set<String> notStarted = new LinkedHashSet<>(record.get().refs);
+      notStarted.removeAll(started);
+
+      Path running = shard(runningPushes, key);
+      Optional<Record> alreadyRunning = read(running);
+      if (notStarted.isEmpty() && !alreadyRunning.isPresent()) {
+        moveTo(waiting, running);
+      } else {
+        Set<String> allRunning = new LinkedHashSet<>(started);
+        alreadyRunning.ifPresent(r -> allRunning.addAll(r.refs));
+        write(running, uriUpdates, allRunning);
+        if (notStarted.isEmpty()) {
+          Files.delete(waiting);
+        } else {
+          write(waiting, uriUpdates, notStarted);
+        }
+      }
+      return started;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while starting push %s", key);
+      return ImmutableSet.of();
+    } finally {
+      unlock(lock);
+    }
+  }
+
+  @Override
+  public void reset(UriUpdates uriUpdates) {
+    String key = pushKey(uriUpdates);
+    Lock lock = lockKey(key);
+    try {
+      resetPush(key, Optional.of(uriUpdates.getRefs()));
+    } finally {
+      unlock(lock);
+    }
+  }
+
+  @Override
+  public void recoverAll() {
+    exclusively(
+        () -> {
+          importLegacyTasks();
+          List<String> running = listPushKeys(runningPushes);
+          running.forEach(this::resetPush);
+          logger.atFine().log("Recovered %d running pushes", running.size());
+        });
+  }
+
+  @Override
+  public boolean isWaiting(UriUpdates uriUpdates) {
+    Optional<Record> record = read(shard(waitingPushes, pushKey(uriUpdates)));
+    return record.isPresent()
+        && uriUpdates.getRefs().stream().anyMatch(record.get().refs::contains);
+  }
+
+  @Override
+  public void finish(UriUpdates uriUpdates) {
+    String key = pushKey(uriUpdates);
+    Lock lock = lockKey(key);
+    try {
+      Path running = shard(runningPushes, key);
+      Optional<Record> record = read(running);
+      if (!record.isPresent()) {
+        logger.atFine().log("Push %s not running", key);
+        return;
+      }
+      Set<String> stillRunning = new LinkedHashSet<>(record.get().refs);
+      stillRunning.removeAll(uriUpdates.getRefs());
+      if (stillRunning.isEmpty()) {
+        logger.atFine().log("DELETE %s", running);
+        Files.delete(running);
+      } else {
+        write(running, uriUpdates, stillRunning);
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while finishing push %s", key);
+    } finally {
+      unlock(lock);
+    }
+  }
+
+  @Override
+  public Stream<ReplicateRefUpdate> streamWaiting() {
+    return streamUpdates(waitingPushes);
+  }
+
+  @Override
+  public Stream<ReplicateRefUpdate> streamRunning() {
+    return streamUpdates(runningPushes);
+  }
+
+  @Override
+  public long waitingCount() {
+    try (Stream<ReplicateRefUpdate> waiting = streamWaiting()) {
+      return waiting.count();
+    }
+  }
+
+  @Override
+  public Map<String, Long> waitingCountsByRemote() {
+    try (Stream<ReplicateRefUpdate> waiting = streamWaiting()) {
+      return ReplicationTasksStore.countByRemote(waiting);
+    }
+  }
+
+  @Override
+  public Map<String, Long> runningCountsByRemote() {
+    try (Stream<ReplicateRefUpdate> running = streamRunning()) {
+      return ReplicationTasksStore.countByRemote(running);
+    }
+  }
+
+  /** Returns the number of task files and push records being written. */
+  @Override
+  public long buildingCount() {
+    return super.buildingCount() + countFiles(createDir(buildingPushes));
+  }
+
+  static String pushKey(String project, String uri, String remote) {
+    return sha1(project, uri, remote).name();
+  }
+
+  private static String pushKey(UriUpdates uriUpdates) {
+    return pushKey(
+        uriUpdates.getProjectNameKey().get(),
+        uriUpdates.getURI().toASCIIString(),
+        uriUpdates.getRemoteName());
+  }
+
+  private void resetPush(String key) {
+    resetPush(key, Optional.empty());
+  }
+
+  /**
+   * Moves the refs of a running push back to waiting, merging them with refs which were created
+   * meanwhile.
+   *
+   * @param refs the refs to reset, all the running ones when empty.
+   */
+  private void resetPush(String key, Optional<Set<String>> refs) {
+    waitingRefs.remove(key);
+    Path running = shard(runningPushes, key);
+    Path waiting = shard(waitingPushes, key);
+    try {
+      Optional<Record> record = read(running);
+      if (!record.isPresent()) {
+        return;
+      }
+      Set<String> reset = new LinkedHashSet<>(record.get().refs);
+      refs.ifPresent(reset::retainAll);
+      Set<String> stillRunning = new LinkedHashSet<>(record.get().refs);
+      stillRunning.removeAll(reset);
+      if (reset.isEmpty()) {
+        return;
+      }
+      try {
+        append(waiting, reset);
+      } catch (NoSuchFileException e) {
+        if (stillRunning.isEmpty()) {
+          moveTo(running, waiting);
+          return;
+        }
+        write(waiting, record.get(), reset);
+      }
+      if (stillRunning.isEmpty()) {
+        Files.delete(running);
+      } else {
+        write(running, record.get(), stillRunning);
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while resetting push %s", key);
+    }
+  }
+
+  private void importLegacyTasks() {
+    migrateFlatLayout();
+    try (Stream<ReplicateRefUpdate> waiting = super.streamWaiting()) {
+      waiting.forEach(this::importLegacyTask);
+    }
+    try (Stream<ReplicateRefUpdate> running = super.streamRunning()) {
+      running.forEach(this::importLegacyTask);
+    }
+  }
+
+  private void importLegacyTask(ReplicateRefUpdate update) {
+    create(update);
+    Task legacy = new Task(update);
+    try {
+      Files.deleteIfExists(legacy.waiting);
+      Files.deleteIfExists(legacy.running);
+      logger.atFine().log("Imported legacy task %s", update.sha1());
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Couldn't delete imported legacy task %s", update);
+    }
+  }
+
+  private Stream<ReplicateRefUpdate> streamUpdates(Path stateDir) {
+    return walkNonDirs(createDir(stateDir))
+        .map(UriReplicationTasksStorage::read)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .flatMap(Record::updates);
+  }
+
+  private static List<String> listPushKeys(Path stateDir) {
+    try (Stream<Path> files = walkNonDirs(createDir(stateDir))) {
+      return files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Reads the refs of a waiting record. A record ending with a partially appended ref, left by a
+   * crash, is rewritten without it, so that the next ref is not glued onto it.
+   *
+   * @return the refs of the record, empty if there is no record or none that can be parsed.
+   */
+  private Set<String> loadWaiting(Path file) throws IOException {
+    String content;
+    try {
+      content = new String(Files.readAllBytes(file), UTF_8);
+    } catch (NoSuchFileException e) {
+      return new LinkedHashSet<>();
+    }
+    Optional<Record> record = Record.parse(content);
+    if (!record.isPresent()) {
+      logger.atWarning().log("Replacing malformed push %s", file);
+      return new LinkedHashSet<>();
+    }
+    if (!content.endsWith("\n")) {
+      write(file, record.get(), record.get().refs);
+    }
+    return record.get().refs;
+  }
+
+  /**
+   * Appends the refs which are not in a record yet. A record ending with a partially appended ref,
+   * left by a crash, is rewritten without it instead, so that the next ref is not glued onto it.
+   *
+   * @throws NoSuchFileException if there is no record, or none that can be parsed.
+   */
+  private void append(Path file, Collection<String> refs) throws IOException {
+    String content = new String(Files.readAllBytes(file), UTF_8);
+    Optional<Record> record = Record.parse(content);
+    if (!record.isPresent()) {
+      logger.atWarning().log("Replacing malformed push %s", file);
+      throw new NoSuchFileException(file.toString());
+    }
+    Set<String> added = new LinkedHashSet<>(refs);
+    added.removeAll(record.get().refs);
+    if (added.isEmpty()) {
+      return;
+    }
+    if (!content.endsWith("\n")) {
+      Set<String> all = new LinkedHashSet<>(record.get().refs);
+      all.addAll(added);
+      write(file, record.get(), all);
+      return;
+    }
+    logger.atFine().log("APPEND %s to %s", added, file);
+    Files.write(file, lines(added).getBytes(UTF_8), StandardOpenOption.APPEND);
+  }
+
+  private void write(Path record, UriUpdates uriUpdates, Set<String> refs) throws IOException {
+    write(
+        record,
+        uriUpdates.getProjectNameKey().get(),
+        uriUpdates.getURI().toASCIIString(),
+        uriUpdates.getRemoteName(),
+        refs);
+  }
+
+  private void write(Path file, Record record, Set<String> refs) throws IOException {
+    write(file, record.project, record.uri, record.remote, refs);
+  }
+
+  private void write(Path record, String project, String uri, String remote, Set<String> refs)
+      throws IOException {
+    Path tmp =
+        Files.createTempFile(createDir(buildingPushes), record.getFileName().toString(), null);
+    logger.atFine().log("CREATE %s %s", tmp, refs);
+    Files.write(tmp, (lines(Arrays.asList(project, uri, remote)) + lines(refs)).getBytes(UTF_8));
+    moveTo(tmp, record);
+  }
+
+  private void moveTo(Path from, Path to) throws IOException {
+    logger.atFine().log("RENAME %s to %s", from, to);
+    createShardDir(to.getParent());
+    Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static String lines(Collection<String> values) {
+    StringBuilder b = new StringBuilder();
+    for (String v : values) {
+      b.append(v).append('\n');
+    }
+    return b.toString();
+  }
+
+  private static Optional<Record> read(Path file) {
+    try {
+      return Record.parse(new String(Files.readAllBytes(file), UTF_8));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error while reading push %s", file);
+      return Optional.empty();
+    }
+  }
+
+  private static class Record {
+    final String project;
+    final String uri;
+    final String remote;
+    final Set<String> refs;
+
+    /**
+     * Parses a record, ignoring a trailing ref without a newline which may have been partially
+     * appended before a crash.
+     */
+    static Optional<Record> parse(String content) {
+      List<String> lines = Arrays.asList(content.split("\n", -1));
+      lines = lines.subList(0, lines.size() - 1);
+      if (lines.size() < HEADER_LINES) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          new Record(
+              lines.get(0),
+              lines.get(1),
+              lines.get(2),
+              new LinkedHashSet<>(lines.subList(HEADER_LINES, lines.size()))));
+    }
+
+    Record(String project, String uri, String remote, Set<String> refs) {
+      this.project = project;
+      this.uri = uri;
+      this.remote = remote;
+      this.refs = refs;
+    }
+
+    Stream<ReplicateRefUpdate> updates() {
+      return refs.stream().map(ref -> ReplicateRefUpdate.create(project, ref, uri, remote));
+    }
+  }
+}
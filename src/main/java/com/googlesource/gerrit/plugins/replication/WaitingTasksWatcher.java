@@ -0,0 +1,336 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.googlesource.gerrit.plugins.replication.ReplicationQueue.repLog;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Notices the task files which other nodes sharing the store add to the waiting/ directory, so that
+ * they are scheduled without rescanning all the waiting tasks.
+ *
+ * <p>In {@link Mode#WATCH} mode, the waiting/ directory and its shard sub-directories are watched
+ * with a {@link WatchService}. Since the kernel doesn't report changes made by other NFS clients,
+ * nor events it had to drop, the watch is complemented by an incremental poll run at every poll
+ * interval. When the directories cannot be watched, only the poll is run.
+ *
+ * <p>The incremental poll keeps the modification time and file names of each shard directory, and
+ * only lists the shard directories whose modification time changed since they were last listed. A
+ * directory modified less than {@link #RACY_MILLIS} before being listed is listed again by the next
+ * poll, since it may still be modified within the same modification time. Every {@link
+ * #FULL_RESCAN_POLLS} polls, and when the watch dropped events, all the shard directories are
+ * listed whatever their modification time, in case a change was missed.
+ *
+ * <p>The task files are known by name and modification time, so that a task reset by another node,
+ * which touches its file, or deleted and created again, is noticed again.
+ *
+ * <p>All the work is done by a single thread.
+ */
+class WaitingTasksWatcher implements Runnable {
+  @VisibleForTesting static final long RACY_MILLIS = 2000;
+  @VisibleForTesting static final int FULL_RESCAN_POLLS = 10;
+
+  /** How the waiting tasks created by other nodes are found. */
+  enum Mode {
+    /** Periodically scheduling all the waiting tasks. */
+    SCAN,
+    /** Watching the waiting directories, complemented by an incremental poll. */
+    WATCH,
+    /** Incrementally polling the waiting directories. */
+    POLL
+  }
+
+  private final Path waitingDir;
+  private final Function<Path, Optional<ReplicateRefUpdate>> reader;
+  private final Consumer<ReplicateRefUpdate> listener;
+
+  private final Map<Path, FileTime> listedShardTimes = new HashMap<>();
+  /** Modification time of the task files of each shard directory, by file name. */
+  private final Map<Path, Map<String, FileTime>> shardFiles = new HashMap<>();
+  private FileTime listedWaitingTime;
+
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+  private WatchService watchService;
+  private long pollIntervalMs;
+  private volatile boolean running;
+  private ExecutorService executor;
+  private Future<?> future;
+
+  /**
+   * @param waitingDir the waiting directory of the tasks storage.
+   * @param reader reads a task file, or returns empty if it no longer exists.
+   * @param listener called for each task file added to the waiting directory.
+   */
+  WaitingTasksWatcher(
+      Path waitingDir,
+      Function<Path, Optional<ReplicateRefUpdate>> reader,
+      Consumer<ReplicateRefUpdate> listener) {
+    this.waitingDir = waitingDir;
+    this.reader = reader;
+    this.listener = listener;
+  }
+
+  /**
+   * Starts noticing the task files added from now on.
+   *
+   * @param executor runs the watcher, and is shut down when it is stopped.
+   * @param mode {@link Mode#WATCH} or {@link Mode#POLL}.
+   * @param pollIntervalMs the interval of the incremental poll.
+   */
+  void start(ExecutorService executor, Mode mode, long pollIntervalMs) {
+    this.pollIntervalMs = pollIntervalMs;
+    if (mode == Mode.WATCH) {
+      try {
+        watchService = waitingDir.getFileSystem().newWatchService();
+        watch(waitingDir);
+      } catch (IOException | UnsupportedOperationException e) {
+        repLog.atWarning().withCause(e).log(
+            "Cannot watch %s, polling it every %dms instead", waitingDir, pollIntervalMs);
+        closeWatchService();
+      }
+    }
+    poll(false);
+    running = true;
+    this.executor = executor;
+    future = executor.submit(this);
+  }
+
+  /** Stops the watcher and shuts its executor down. */
+  void stop() {
+    running = false;
+    if (future != null) {
+      future.cancel(true);
+      future = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      long nextPoll = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollIntervalMs);
+      int polls = 0;
+      while (running) {
+        long waitNanos = nextPoll - System.nanoTime();
+        if (waitNanos > 0) {
+          if (watchService != null) {
+            WatchKey key = watchService.poll(waitNanos, TimeUnit.NANOSECONDS);
+            if (key != null) {
+              processEvents(key);
+            }
+            continue;
+          }
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        if (++polls % FULL_RESCAN_POLLS == 0) {
+          rescan();
+        } else {
+          poll(true);
+        }
+        nextPoll = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollIntervalMs);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closeWatchService();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Replication Waiting Tasks Watcher";
+  }
+
+  /**
+   * Lists the shard directories modified since they were last listed.
+   *
+   * @param notify whether to notify the listener of the files found.
+   */
+  @VisibleForTesting
+  void poll(boolean notify) {
+    try {
+      FileTime waitingTime = Files.getLastModifiedTime(waitingDir);
+      if (!waitingTime.equals(listedWaitingTime)) {
+        listedWaitingTime = isRacy(waitingTime) ? null : waitingTime;
+        Set<Path> shards = listDirs(waitingDir);
+        shardFiles.keySet().retainAll(shards);
+        listedShardTimes.keySet().retainAll(shards);
+        for (Path shard : shards) {
+          if (!shardFiles.containsKey(shard)) {
+            shardFiles.put(shard, new HashMap<>());
+            watch(shard);
+          }
+        }
+      }
+      for (Path shard : shardFiles.keySet()) {
+        FileTime shardTime = Files.getLastModifiedTime(shard);
+        if (!shardTime.equals(listedShardTimes.get(shard))) {
+          listedShardTimes.put(shard, isRacy(shardTime) ? null : shardTime);
+          list(shard, notify);
+        }
+      }
+    } catch (IOException e) {
+      repLog.atSevere().withCause(e).log("Error while polling %s", waitingDir);
+    }
+  }
+
+  /** Lists all the shard directories, whatever their modification time. */
+  @VisibleForTesting
+  void rescan() {
+    listedWaitingTime = null;
+    listedShardTimes.clear();
+    poll(true);
+  }
+
+  private void processEvents(WatchKey key) {
+    Path dir = watchedDirs.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        rescan();
+      } else if (dir != null && event.kind() == ENTRY_DELETE) {
+        Path deleted = dir.resolve((Path) event.context());
+        if (dir.equals(waitingDir)) {
+          shardFiles.remove(deleted);
+          listedShardTimes.remove(deleted);
+        } else if (shardFiles.containsKey(dir)) {
+          shardFiles.get(dir).remove(deleted.getFileName().toString());
+        }
+      } else if (dir != null && event.kind() == ENTRY_CREATE) {
+        Path created = dir.resolve((Path) event.context());
+        if (dir.equals(waitingDir)) {
+          if (Files.isDirectory(created) && !shardFiles.containsKey(created)) {
+            shardFiles.put(created, new HashMap<>());
+            watch(created);
+            list(created, true);
+          }
+        } else if (shardFiles.containsKey(dir)) {
+          found(shardFiles.get(dir), created, true);
+        }
+      }
+    }
+    if (!key.reset()) {
+      watchedDirs.remove(key);
+    }
+  }
+
+  private void list(Path shard, boolean notify) {
+    try (Stream<Path> files = Files.list(shard)) {
+      Map<String, FileTime> previous = shardFiles.get(shard);
+      Map<String, FileTime> found = new HashMap<>();
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String name = file.getFileName().toString();
+        FileTime time = previous.get(name);
+        if (time != null) {
+          found.put(name, time);
+        }
+        found(found, file, notify);
+      }
+      shardFiles.put(shard, found);
+    } catch (NoSuchFileException e) {
+      shardFiles.put(shard, new HashMap<>());
+    } catch (IOException e) {
+      repLog.atSevere().withCause(e).log("Error while listing %s", shard);
+    }
+  }
+
+  /**
+   * Records a task file found in a shard directory, notifying the listener when it is new or was
+   * modified since it was last found, like when another node reset the task.
+   */
+  private void found(Map<String, FileTime> files, Path file, boolean notify) {
+    try {
+      FileTime time = Files.getLastModifiedTime(file);
+      if (!time.equals(files.put(file.getFileName().toString(), time)) && notify) {
+        notify(file);
+      }
+    } catch (NoSuchFileException e) {
+      files.remove(file.getFileName().toString());
+    } catch (IOException e) {
+      repLog.atSevere().withCause(e).log("Error while reading %s", file);
+    }
+  }
+
+  private void notify(Path file) {
+    reader
+        .apply(file)
+        .ifPresent(
+            update -> {
+              try {
+                listener.accept(update);
+              } catch (RuntimeException e) {
+                repLog.atSevere().withCause(e).log("Unexpected error while scheduling %s", update);
+              }
+            });
+  }
+
+  private void watch(Path dir) {
+    if (watchService != null) {
+      try {
+        watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE), dir);
+      } catch (IOException e) {
+        repLog.atWarning().withCause(e).log("Cannot watch %s, only polling it", dir);
+      }
+    }
+  }
+
+  private void closeWatchService() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        repLog.atWarning().withCause(e).log("Error while closing watch of %s", waitingDir);
+      }
+      watchService = null;
+      watchedDirs.clear();
+    }
+  }
+
+  private static boolean isRacy(FileTime time) {
+    return System.currentTimeMillis() - time.toMillis() < RACY_MILLIS;
+  }
+
+  private static Set<Path> listDirs(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(Files::isDirectory).collect(Collectors.toSet());
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.server.util.IdGenerator;
+import com.googlesource.gerrit.plugins.replication.events.ProjectDeletionState;
+import java.util.HashMap;
+import java.util.Optional;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeleteProjectTaskTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("myProject");
+
+  private URIish uri;
+  private AdminApi adminApi;
+  private ProjectDeletionState state;
+  private RemoteRefsCache remoteRefsCache;
+  private PushedRefsCache pushedRefsCache;
+  private DeleteProjectTask task;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("ssh://mirror.example.com/myProject.git");
+    adminApi = mock(AdminApi.class);
+    AdminApiFactory adminApiFactory = mock(AdminApiFactory.class);
+    when(adminApiFactory.create(uri)).thenReturn(Optional.of(adminApi));
+    state = mock(ProjectDeletionState.class);
+    remoteRefsCache = new RemoteRefsCache(10, 60);
+    Config config = new Config();
+    config.setLong("replication", null, "pushedRefsCacheSize", 10);
+    ReplicationConfig replConfig = mock(ReplicationConfig.class);
+    when(replConfig.getConfig()).thenReturn(config);
+    pushedRefsCache = new PushedRefsCache(replConfig, mock(ReplicationMetrics.class));
+    task =
+        new DeleteProjectTask(
+            DynamicItem.itemOf(AdminApiFactory.class, adminApiFactory),
+            remoteRefsCache,
+            pushedRefsCache,
+            mock(IdGenerator.class),
+            state,
+            uri,
+            PROJECT);
+  }
+
+  @Test
+  public void cachedRemoteRefsAreDroppedWhenProjectIsDeleted() throws Exception {
+    when(adminApi.deleteProject(PROJECT)).thenReturn(true);
+    remoteRefsCache.put(uri, new HashMap<>());
+
+    task.run();
+
+    verify(state).setSucceeded(uri);
+    assertThat(remoteRefsCache.get(uri, 60, prefixes -> new HashMap<>()).isPresent()).isFalse();
+  }
+
+  @Test
+  public void pushedRefsAreForgottenWhenProjectIsDeleted() throws Exception {
+    when(adminApi.deleteProject(PROJECT)).thenReturn(true);
+    RemoteRefUpdate update = mock(RemoteRefUpdate.class);
+    when(update.getRemoteName()).thenReturn("refs/heads/master");
+    when(update.getStatus()).thenReturn(RemoteRefUpdate.Status.OK);
+    when(update.getNewObjectId())
+        .thenReturn(ObjectId.fromString("0000000000000000000000000000000000000001"));
+    pushedRefsCache.update(uri, ImmutableList.of(update));
+    assertThat(pushedRefsCache.isPushed(uri, update)).isTrue();
+
+    task.run();
+
+    assertThat(pushedRefsCache.isPushed(uri, update)).isFalse();
+  }
+}
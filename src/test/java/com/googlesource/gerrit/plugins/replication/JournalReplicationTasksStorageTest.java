@@ -0,0 +1,238 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalReplicationTasksStorageTest extends ReplicationTasksStorageTest {
+  private static final long SMALL_SEGMENT_SIZE = 512;
+
+  private JournalReplicationTasksStorage journal;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    journal = newJournal(JournalReplicationTasksStorage.DEFAULT_SEGMENT_SIZE);
+    storage = journal;
+  }
+
+  @Test
+  @Override
+  public void instancesOfTheSameStorageHaveTheSameElements() throws Exception {
+    storage.create(REF_UPDATE);
+    assertThatStream(reopen().streamWaiting()).containsExactly(REF_UPDATE);
+
+    storage.start(uriUpdates);
+    ReplicationTasksStorage persistedView = reopen();
+    assertThatStream(persistedView.streamWaiting()).isEmpty();
+    assertThatStream(persistedView.streamRunning()).containsExactly(REF_UPDATE);
+
+    storage.finish(uriUpdates);
+    assertNoIncompleteTasks(reopen());
+  }
+
+  @Test
+  public void canRecoverRunningUpdateAfterRestart() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+    journal.close();
+
+    ReplicationTasksStorage restarted = reopen();
+    restarted.recoverAll();
+    assertThatStream(restarted.streamWaiting()).containsExactly(REF_UPDATE);
+    assertThatStream(restarted.streamRunning()).isEmpty();
+  }
+
+  @Test
+  public void incompleteTrailingRecordIsIgnored() throws Exception {
+    storage.create(REF_UPDATE);
+    Path segment = journal.activeSegment().get();
+    journal.close();
+    Files.write(segment, "START ab".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+    ReplicationTasksStorage restarted = reopen();
+    assertThatStream(restarted.streamWaiting()).containsExactly(REF_UPDATE);
+    assertThatStream(restarted.streamRunning()).isEmpty();
+  }
+
+  @Test
+  public void recordsAppendedAfterFailedAppendAreReplayed() throws Exception {
+    ReplicateRefUpdate next = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    storage.create(REF_UPDATE);
+    // Simulate an append which failed after writing part of its record.
+    Path segment = journal.activeSegment().get();
+    Files.write(segment, "START ab".getBytes(UTF_8), StandardOpenOption.APPEND);
+    journal.rollOver();
+    storage.create(next);
+
+    assertThatStream(reopen().streamWaiting()).containsExactly(REF_UPDATE, next);
+  }
+
+  @Test
+  public void compactionKeepsLiveTasks() throws Exception {
+    journal = newJournal(SMALL_SEGMENT_SIZE);
+    storage = journal;
+    ReplicateRefUpdate finished = ReplicateRefUpdate.create(PROJECT, "refA", URISH, REMOTE);
+    ReplicateRefUpdate running = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    for (int i = 0; i < 20; i++) {
+      storage.create(finished);
+      storage.start(TestUriUpdates.create(finished));
+      storage.finish(TestUriUpdates.create(finished));
+    }
+    storage.create(REF_UPDATE);
+    storage.create(running);
+    storage.start(TestUriUpdates.create(running));
+
+    try (Stream<Path> files = Files.list(storageSite.resolve("journal"))) {
+      assertThat(files.count()).isEqualTo(2); // latest snapshot and active segment
+    }
+    ReplicationTasksStorage restarted = reopen();
+    assertThatStream(restarted.streamWaiting()).containsExactly(REF_UPDATE);
+    assertThatStream(restarted.streamRunning()).containsExactly(running);
+  }
+
+  @Test
+  public void failedCompactionIsRetriedByLaterAppend() throws Exception {
+    journal = newJournal(SMALL_SEGMENT_SIZE);
+    storage = journal;
+    Path journalDir = storageSite.resolve("journal");
+    List<ReplicateRefUpdate> created = new ArrayList<>();
+    storage.create(REF_UPDATE);
+    created.add(REF_UPDATE);
+    String segment = journal.activeSegment().get().getFileName().toString();
+    long next = Long.parseLong(segment.replaceAll("\\D", "")) + 1;
+    // A non-empty directory in place of the next snapshot makes the compaction fail.
+    Path obstacle = journalDir.resolve(String.format("snapshot-%020d.log", next));
+    Files.createDirectories(obstacle.resolve("file"));
+
+    for (int i = 0; i < 10; i++) {
+      ReplicateRefUpdate u = ReplicateRefUpdate.create(PROJECT, "ref" + i, URISH, REMOTE);
+      storage.create(u);
+      created.add(u);
+    }
+    assertThatStream(storage.streamWaiting()).containsExactlyElementsIn(created);
+
+    Files.delete(obstacle.resolve("file"));
+    Files.delete(obstacle);
+    ReplicateRefUpdate last = ReplicateRefUpdate.create(PROJECT, "refZ", URISH, REMOTE);
+    storage.create(last);
+    created.add(last);
+    try (Stream<Path> files = Files.list(journalDir)) {
+      assertThat(files.count()).isEqualTo(2); // latest snapshot and active segment
+    }
+    assertThatStream(reopen().streamWaiting()).containsExactlyElementsIn(created);
+  }
+
+  @Test
+  public void legacyTasksAreImportedOnRecovery() throws Exception {
+    ReplicationTasksStorage legacy = new ReplicationTasksStorage(storageSite);
+    ReplicateRefUpdate running = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    legacy.create(REF_UPDATE);
+    legacy.create(running);
+    legacy.start(TestUriUpdates.create(running));
+
+    storage.recoverAll();
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, running);
+    assertTrue(storage.isWaiting(uriUpdates));
+    try (Stream<ReplicateRefUpdate> waiting = legacy.streamWaiting();
+        Stream<ReplicateRefUpdate> inFlight = legacy.streamRunning()) {
+      assertThat(waiting.count() + inFlight.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void finishedTaskIsNotWaitingAfterRestart() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+    storage.finish(uriUpdates);
+    journal.close();
+
+    assertFalse(reopen().isWaiting(uriUpdates));
+  }
+
+  @Test
+  public void concurrentGroupCommitsAreAllPersisted() throws Exception {
+    journal = new JournalReplicationTasksStorage(storageSite, SMALL_SEGMENT_SIZE, true);
+    storage = journal;
+    int threads = 8;
+    int refsPerThread = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> creators = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        creators.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < refsPerThread; i++) {
+                    storage.create(
+                        ReplicateRefUpdate.create(
+                            PROJECT, "refs/changes/" + thread + "/" + i, URISH, REMOTE));
+                  }
+                }));
+      }
+      for (Future<?> creator : creators) {
+        creator.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThatStream(reopen().streamWaiting()).hasSize(threads * refsPerThread);
+  }
+
+  @Test
+  public void interruptedGroupCommitIsPersisted() throws Exception {
+    journal = new JournalReplicationTasksStorage(storageSite, SMALL_SEGMENT_SIZE, true);
+    storage = journal;
+
+    Thread.currentThread().interrupt();
+    try {
+      storage.create(REF_UPDATE);
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+
+    assertThatStream(reopen().streamWaiting()).containsExactly(REF_UPDATE);
+  }
+
+  private JournalReplicationTasksStorage newJournal(long segmentSize) {
+    return new JournalReplicationTasksStorage(storageSite, segmentSize);
+  }
+
+  private ReplicationTasksStorage reopen() {
+    journal.close();
+    return newJournal(JournalReplicationTasksStorage.DEFAULT_SEGMENT_SIZE);
+  }
+}
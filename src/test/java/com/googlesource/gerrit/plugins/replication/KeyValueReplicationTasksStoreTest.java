@@ -0,0 +1,116 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyValueReplicationTasksStoreTest extends ReplicationTasksStorageTest {
+  private static final long SMALL_COMPACTION_SIZE = 512;
+
+  private KeyValueReplicationTasksStore kvStore;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    kvStore = newStore(KeyValueReplicationTasksStore.DEFAULT_COMPACTION_SIZE);
+    storage = kvStore;
+  }
+
+  @Test
+  @Override
+  public void instancesOfTheSameStorageHaveTheSameElements() throws Exception {
+    storage.create(REF_UPDATE);
+    assertThatStream(reopen().streamWaiting()).containsExactly(REF_UPDATE);
+
+    storage.start(uriUpdates);
+    ReplicationTasksStore persistedView = reopen();
+    assertThatStream(persistedView.streamWaiting()).isEmpty();
+    assertThatStream(persistedView.streamRunning()).containsExactly(REF_UPDATE);
+
+    storage.finish(uriUpdates);
+    assertNoIncompleteTasks(reopen());
+  }
+
+  @Test
+  public void incompleteTransactionIsDiscarded() throws Exception {
+    storage.create(REF_UPDATE);
+    kvStore.closeStore();
+    Path file = storageSite.resolve("tasks.kv");
+    long size = Files.size(file);
+    storage.start(uriUpdates);
+    kvStore.closeStore();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(size + (Files.size(file) - size) / 2);
+    }
+
+    ReplicationTasksStore restarted = reopen();
+    assertThatStream(restarted.streamWaiting()).containsExactly(REF_UPDATE);
+    assertThatStream(restarted.streamRunning()).isEmpty();
+  }
+
+  @Test
+  public void compactionKeepsLiveTasks() throws Exception {
+    kvStore = newStore(SMALL_COMPACTION_SIZE);
+    storage = kvStore;
+    ReplicateRefUpdate finished = ReplicateRefUpdate.create(PROJECT, "refA", URISH, REMOTE);
+    ReplicateRefUpdate running = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    for (int i = 0; i < 20; i++) {
+      storage.create(finished);
+      storage.start(TestUriUpdates.create(finished));
+      storage.finish(TestUriUpdates.create(finished));
+    }
+    storage.create(REF_UPDATE);
+    storage.create(running);
+    storage.start(TestUriUpdates.create(running));
+
+    assertThat(Files.size(storageSite.resolve("tasks.kv"))).isLessThan(2 * SMALL_COMPACTION_SIZE);
+    ReplicationTasksStore restarted = reopen();
+    assertThatStream(restarted.streamWaiting()).containsExactly(REF_UPDATE);
+    assertThatStream(restarted.streamRunning()).containsExactly(running);
+  }
+
+  @Test
+  public void legacyTasksAreImportedOnRecovery() throws Exception {
+    ReplicationTasksStorage legacy = new ReplicationTasksStorage(storageSite);
+    ReplicateRefUpdate running = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    legacy.create(REF_UPDATE);
+    legacy.create(running);
+    legacy.start(TestUriUpdates.create(running));
+
+    storage.recoverAll();
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, running);
+    assertTrue(storage.isWaiting(uriUpdates));
+    assertNoIncompleteTasks(legacy);
+  }
+
+  private KeyValueReplicationTasksStore newStore(long compactionSize) {
+    return new KeyValueReplicationTasksStore(storageSite, compactionSize);
+  }
+
+  private ReplicationTasksStore reopen() {
+    kvStore.closeStore();
+    return newStore(KeyValueReplicationTasksStore.DEFAULT_COMPACTION_SIZE);
+  }
+}
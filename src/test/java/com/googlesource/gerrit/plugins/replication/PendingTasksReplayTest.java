@@ -0,0 +1,165 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.googlesource.gerrit.plugins.replication.PendingTasksReplay.Group;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingTasksReplayTest {
+  private static final String URI_A = "http://a.example.com/myProject.git";
+  private static final String URI_B = "http://b.example.com/myProject.git";
+
+  private ScheduledThreadPoolExecutor threadPool;
+  private Queue<Group> scheduled;
+  private CountDownLatch done;
+  private AtomicInteger doneCalls;
+
+  @Before
+  public void setUp() {
+    threadPool = new ScheduledThreadPoolExecutor(4);
+    scheduled = new ConcurrentLinkedQueue<>();
+    done = new CountDownLatch(1);
+    doneCalls = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() {
+    threadPool.shutdownNow();
+  }
+
+  @Test
+  public void tasksAreGroupedByProjectAndUri() throws Exception {
+    List<ReplicateRefUpdate> updates = new ArrayList<>();
+    updates.add(update("p1", "refs/heads/a", URI_A));
+    updates.add(update("p1", "refs/heads/b", URI_B));
+    updates.add(update("p1", "refs/heads/c", URI_A));
+    updates.add(update("p2", "refs/heads/a", URI_A));
+
+    replay(updates, 100, 1);
+
+    assertThat(scheduled)
+        .containsExactly(
+            Group.create("p1", URI_A, ImmutableList.of("refs/heads/a", "refs/heads/c")),
+            Group.create("p1", URI_B, ImmutableList.of("refs/heads/b")),
+            Group.create("p2", URI_A, ImmutableList.of("refs/heads/a")));
+  }
+
+  @Test
+  public void allTasksAreReplayedByParallelChainsInBatches() throws Exception {
+    List<ReplicateRefUpdate> updates = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      updates.add(update("p" + (i % 10), "refs/changes/" + i, i % 2 == 0 ? URI_A : URI_B));
+    }
+
+    replay(updates, 64, 4);
+
+    assertThat(scheduled.stream().mapToInt(g -> g.refs().size()).sum()).isEqualTo(1000);
+    assertThat(doneCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void replayIsDoneOnlyAfterEveryGroupRan() throws Exception {
+    List<ReplicateRefUpdate> updates = new ArrayList<>();
+    updates.add(update("p1", "refs/heads/a", URI_A));
+    updates.add(update("p2", "refs/heads/a", URI_A));
+    List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    List<String> ranWhenDone = new ArrayList<>();
+
+    new PendingTasksReplay(
+            updates.stream(),
+            updates.size(),
+            100,
+            new ChainedScheduler.Runner<Group>() {
+              @Override
+              public void run(Group group) {
+                if (group.project().equals("p1")) {
+                  sleepUninterruptibly(200, MILLISECONDS);
+                }
+                ran.add(group.project());
+              }
+
+              @Override
+              public void onDone() {
+                ranWhenDone.addAll(ran);
+                done.countDown();
+              }
+            })
+        .start(threadPool, 1);
+
+    assertThat(done.await(30, SECONDS)).isTrue();
+    assertThat(ranWhenDone).containsExactly("p1", "p2");
+  }
+
+  @Test
+  public void emptyReplayIsDone() throws Exception {
+    AtomicBoolean closed = new AtomicBoolean();
+
+    replay(Stream.<ReplicateRefUpdate>empty().onClose(() -> closed.set(true)), 0, 10, 4);
+
+    assertThat(scheduled).isEmpty();
+    assertThat(doneCalls.get()).isEqualTo(1);
+    assertThat(closed.get()).isTrue();
+  }
+
+  private void replay(List<ReplicateRefUpdate> updates, int batchSize, int chains)
+      throws Exception {
+    replay(updates.stream(), updates.size(), batchSize, chains);
+  }
+
+  private void replay(Stream<ReplicateRefUpdate> updates, long total, int batchSize, int chains)
+      throws Exception {
+    new PendingTasksReplay(
+            updates,
+            total,
+            batchSize,
+            new ChainedScheduler.Runner<Group>() {
+              @Override
+              public void run(Group group) {
+                scheduled.add(group);
+              }
+
+              @Override
+              public void onDone() {
+                doneCalls.incrementAndGet();
+                done.countDown();
+              }
+            })
+        .start(threadPool, chains);
+    assertThat(done.await(30, SECONDS)).isTrue();
+  }
+
+  private static ReplicateRefUpdate update(String project, String ref, String uri) {
+    return ReplicateRefUpdate.create(project, ref, uri, "myDest");
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PoolingTransportFactoryTest {
+  private Config config;
+  private TransportFactoryImpl delegate;
+  private ReplicationMetrics metrics;
+  private PoolingTransportFactory factory;
+  private Repository repo;
+  private URIish uri;
+
+  @Before
+  public void setUp() throws Exception {
+    config = new Config();
+    config.setInt("replication", null, "transportPoolMaxIdle", 1);
+    ReplicationConfig replConfig = mock(ReplicationConfig.class);
+    when(replConfig.getConfig()).thenReturn(config);
+    delegate = mock(TransportFactoryImpl.class);
+    metrics = mock(ReplicationMetrics.class);
+    factory = new PoolingTransportFactory(delegate, replConfig, metrics);
+    repo = mock(Repository.class);
+    uri = new URIish("ssh://mirror.example.com/project.git");
+  }
+
+  @Test
+  public void transportIsClosedWhenPoolIsDisabled() throws Exception {
+    config.setInt("replication", null, "transportPoolMaxIdle", 0);
+    Transport tn = expectOpen(repo, uri);
+
+    factory.release(factory.open(repo, uri), true);
+
+    verify(tn).close();
+    verify(metrics, never()).transportPoolMiss();
+  }
+
+  @Test
+  public void releasedTransportIsReused() throws Exception {
+    Transport tn = expectOpen(repo, uri);
+    factory.release(factory.open(repo, uri), true);
+
+    assertThat(factory.open(repo, uri)).isSameInstanceAs(tn);
+    verify(tn, never()).close();
+    verify(metrics).transportPoolMiss();
+    verify(metrics).transportPoolHit();
+  }
+
+  @Test
+  public void transportOfFailedPushIsClosed() throws Exception {
+    Transport tn = expectOpen(repo, uri);
+
+    factory.release(factory.open(repo, uri), false);
+
+    verify(tn).close();
+    assertThat(factory.idleCount(uri)).isEqualTo(0);
+  }
+
+  @Test
+  public void transportIsNotReusedForOtherRepository() throws Exception {
+    Repository otherRepo = mock(Repository.class);
+    Transport tn = expectOpen(repo, uri);
+    Transport otherTn = expectOpen(otherRepo, uri);
+    factory.release(factory.open(repo, uri), true);
+
+    assertThat(factory.open(otherRepo, uri)).isSameInstanceAs(otherTn);
+    verify(tn, never()).close();
+  }
+
+  @Test
+  public void idleTransportsPerHostAreLimited() throws Exception {
+    URIish otherUri = new URIish("ssh://mirror.example.com/other.git");
+    Transport tn = expectOpen(repo, uri);
+    Transport otherTn = expectOpen(repo, otherUri);
+    Transport first = factory.open(repo, uri);
+    Transport second = factory.open(repo, otherUri);
+
+    factory.release(first, true);
+    factory.release(second, true);
+
+    verify(tn, never()).close();
+    verify(otherTn).close();
+    assertThat(factory.idleCount(uri)).isEqualTo(1);
+  }
+
+  @Test
+  public void expiredTransportIsClosed() throws Exception {
+    config.setString("replication", null, "transportPoolIdleTimeout", "0s");
+    Transport tn = expectOpen(repo, uri);
+    factory.release(factory.open(repo, uri), true);
+
+    factory.open(repo, uri);
+
+    verify(tn).close();
+    verify(metrics, never()).transportPoolHit();
+  }
+
+  @Test
+  public void idleTransportsAreClosedOnStop() throws Exception {
+    Transport tn = expectOpen(repo, uri);
+    factory.release(factory.open(repo, uri), true);
+
+    factory.stop();
+
+    verify(tn).close();
+    assertThat(factory.idleCount(uri)).isEqualTo(0);
+  }
+
+  @Test
+  public void transportReleasedAfterStopIsClosed() throws Exception {
+    Transport tn = expectOpen(repo, uri);
+    Transport leased = factory.open(repo, uri);
+
+    factory.stop();
+    factory.release(leased, true);
+
+    verify(tn).close();
+    assertThat(factory.idleCount(uri)).isEqualTo(0);
+  }
+
+  @Test
+  public void onlyPooledTransportIsReused() throws Exception {
+    expectOpen(repo, uri);
+    Transport opened = factory.open(repo, uri);
+    assertThat(factory.isReused(opened)).isFalse();
+    factory.release(opened, true);
+
+    assertThat(factory.isReused(factory.open(repo, uri))).isTrue();
+  }
+
+  @Test
+  public void failedReusedTransportClosesOtherIdleTransports() throws Exception {
+    config.setInt("replication", null, "transportPoolMaxIdle", 2);
+    Transport tn = mock(Transport.class);
+    Transport otherTn = mock(Transport.class);
+    when(delegate.open(repo, uri)).thenReturn(tn, otherTn);
+    Transport first = factory.open(repo, uri);
+    Transport second = factory.open(repo, uri);
+    factory.release(first, true);
+    factory.release(second, true);
+
+    factory.release(factory.open(repo, uri), false);
+
+    verify(tn).close();
+    verify(otherTn).close();
+    assertThat(factory.idleCount(uri)).isEqualTo(0);
+  }
+
+  private Transport expectOpen(Repository local, URIish u) throws Exception {
+    Transport tn = mock(Transport.class);
+    when(delegate.open(local, u)).thenReturn(tn);
+    return tn;
+  }
+}
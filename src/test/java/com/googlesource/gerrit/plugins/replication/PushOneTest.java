@@ -14,15 +14,18 @@
 
 package com.googlesource.gerrit.plugins.replication;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.eclipse.jgit.lib.Ref.Storage.NEW;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.Timer1;
@@ -161,6 +164,7 @@ public class PushOneTest {
     setupProjectCacheMock();
 
     replicationConfigMock = mock(ReplicationConfig.class);
+    when(replicationConfigMock.getConfig()).thenReturn(new Config());
   }
 
   @Test
@@ -223,6 +227,93 @@ public class PushOneTest {
     verify(transportMock, never()).push(any(), any());
   }
 
+  @Test
+  public void shouldOnlyResolveDeltaRefsForDeltaPush() throws InterruptedException, IOException {
+    when(transportMock.push(any(), any())).thenReturn(new PushResult());
+
+    PushOne pushOne = createPushOne(null);
+
+    pushOne.addRef(newLocalRef.getName());
+    pushOne.run();
+
+    isCallFinished.await(TEST_PUSH_TIMEOUT_SECS, TimeUnit.SECONDS);
+
+    verify(transportMock).push(any(), any());
+    verify(refDatabaseMock, never()).getRefs();
+  }
+
+  @Test
+  public void shouldPushInBatches() throws InterruptedException, IOException {
+    Ref otherLocalRef =
+        new ObjectIdRef.Unpeeled(
+            NEW, "bar", ObjectId.fromString("0000000000000000000000000000000000000002"));
+    when(refDatabaseMock.getRefs()).thenReturn(Arrays.asList(newLocalRef, otherLocalRef));
+    when(destinationMock.getPushBatchSize()).thenReturn(1);
+    when(transportMock.push(any(), any())).thenReturn(new PushResult());
+
+    PushOne pushOne = createPushOne(null);
+
+    pushOne.addRef(PushOne.ALL_REFS);
+    pushOne.run();
+
+    isCallFinished.await(TEST_PUSH_TIMEOUT_SECS, TimeUnit.SECONDS);
+
+    verify(transportMock, times(2)).push(any(), any());
+  }
+
+  @Test
+  public void shouldNotNotifyRefsOfPushedBatchesAgainWhenLaterBatchFails()
+      throws InterruptedException, IOException {
+    Ref otherLocalRef =
+        new ObjectIdRef.Unpeeled(
+            NEW, "bar", ObjectId.fromString("0000000000000000000000000000000000000002"));
+    when(refDatabaseMock.getRefs()).thenReturn(Arrays.asList(newLocalRef, otherLocalRef));
+    when(destinationMock.getPushBatchSize()).thenReturn(1);
+    when(destinationMock.getUpdateRefErrorMaxRetries()).thenReturn(1);
+    PushResult pushed = pushResult(remoteUpdate("foo", RemoteRefUpdate.Status.OK, null));
+    PushResult lockFailure =
+        pushResult(
+            remoteUpdate(
+                "bar", RemoteRefUpdate.Status.REJECTED_OTHER_REASON, PushOne.LOCK_FAILURE));
+    when(transportMock.push(any(), any())).thenReturn(pushed, lockFailure);
+    ReplicationState fooState = mock(ReplicationState.class);
+    ReplicationState barState = mock(ReplicationState.class);
+
+    PushOne pushOne = createPushOne(null);
+    pushOne.addRef(PushOne.ALL_REFS);
+    pushOne.addState("foo", fooState);
+    pushOne.addState("bar", barState);
+    pushOne.run();
+
+    isCallFinished.await(TEST_PUSH_TIMEOUT_SECS, TimeUnit.SECONDS);
+
+    verify(destinationMock).reschedule(pushOne, Destination.RetryReason.TRANSPORT_ERROR);
+    verify(fooState, times(1)).notifyRefReplicated(any(), any(), any(), any(), any());
+    assertThat(pushOne.getStates().keySet()).doesNotContain("foo");
+    assertThat(pushOne.getStates().get("bar")).containsExactly(barState);
+  }
+
+  @Test
+  public void shouldRetryOverNewTransportWhenReusedTransportFails()
+      throws InterruptedException, IOException {
+    when(transportFactoryMock.isReused(transportMock)).thenReturn(true, false);
+    when(transportMock.push(any(), any()))
+        .thenThrow(new TransportException("connection closed"))
+        .thenReturn(new PushResult());
+
+    PushOne pushOne = createPushOne(null);
+
+    pushOne.addRef(PushOne.ALL_REFS);
+    pushOne.run();
+
+    isCallFinished.await(TEST_PUSH_TIMEOUT_SECS, TimeUnit.SECONDS);
+
+    verify(transportMock, times(2)).push(any(), any());
+    verify(transportFactoryMock).release(transportMock, false);
+    verify(transportFactoryMock).release(transportMock, true);
+    verify(destinationMock, never()).reschedule(any(), any());
+  }
+
   private PushOne createPushOne(DynamicItem<ReplicationPushFilter> replicationPushFilter) {
     PushOne push =
         new PushOne(
@@ -239,6 +330,8 @@ public class PushOneTest {
             projectCacheMock,
             createProjectTaskFactoryMock,
             transportFactoryMock,
+            new RemoteRefsCache(replicationConfigMock),
+            new PushedRefsCache(replicationConfigMock, replicationMetricsMock),
             projectNameKey,
             urish);
 
@@ -246,6 +339,23 @@ public class PushOneTest {
     return push;
   }
 
+  private static PushResult pushResult(RemoteRefUpdate... updates) {
+    PushResult result = mock(PushResult.class);
+    when(result.getRemoteUpdates()).thenReturn(Arrays.asList(updates));
+    return result;
+  }
+
+  private static RemoteRefUpdate remoteUpdate(
+      String ref, RemoteRefUpdate.Status status, String message) {
+    RemoteRefUpdate update = mock(RemoteRefUpdate.class);
+    when(update.getSrcRef()).thenReturn(ref);
+    when(update.getRemoteName()).thenReturn(ref);
+    when(update.getNewObjectId()).thenReturn(ObjectId.zeroId());
+    when(update.getStatus()).thenReturn(status);
+    when(update.getMessage()).thenReturn(message);
+    return update;
+  }
+
   private void setupProjectCacheMock() {
     projectCacheMock = mock(ProjectCache.class);
     when(projectCacheMock.get(projectNameKey)).thenReturn(Optional.of(projectStateMock));
@@ -302,10 +412,9 @@ public class PushOneTest {
 
   private void setupRefSpecMock() {
     refSpecMock = mock(RefSpec.class);
-    when(refSpecMock.matchSource(any(String.class))).thenReturn(true);
-    when(refSpecMock.expandFromSource(any(String.class))).thenReturn(refSpecMock);
     when(refSpecMock.getDestination()).thenReturn("fooProject");
     when(refSpecMock.isForceUpdate()).thenReturn(false);
+    when(destinationMock.matchPushSource(any(String.class))).thenReturn(refSpecMock);
   }
 
   private void setupDestinationMock() {
@@ -334,6 +443,8 @@ public class PushOneTest {
     when(repositoryMock.getConfig()).thenReturn(config);
     when(repositoryMock.getRefDatabase()).thenReturn(refDatabaseMock);
     when(refDatabaseMock.getRefs()).thenReturn(localRefs);
+    when(refDatabaseMock.exactRef(new String[] {newLocalRef.getName()}))
+        .thenReturn(ImmutableMap.of(newLocalRef.getName(), newLocalRef));
     when(repositoryMock.updateRef("fooProject")).thenReturn(refUpdateMock);
   }
 
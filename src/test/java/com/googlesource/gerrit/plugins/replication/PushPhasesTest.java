@@ -0,0 +1,90 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.base.Ticker;
+import com.googlesource.gerrit.plugins.replication.PushPhases.Phase;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushPhasesTest {
+  private long now;
+  private PushPhases phases;
+
+  @Before
+  public void setUp() {
+    phases =
+        new PushPhases(
+            new Ticker() {
+              @Override
+              public long read() {
+                return now;
+              }
+            });
+  }
+
+  @Test
+  public void phaseRunsUntilNextOneStarts() {
+    phases.start(Phase.OPEN_REPOSITORY);
+    advance(2);
+    phases.start(Phase.PUSH);
+    advance(50);
+    phases.stop();
+    advance(10);
+
+    assertThat(phases.getNanos(Phase.OPEN_REPOSITORY)).isEqualTo(MILLISECONDS.toNanos(2));
+    assertThat(phases.getNanos(Phase.PUSH)).isEqualTo(MILLISECONDS.toNanos(50));
+    assertThat(phases.toString()).isEqualTo("open_repository=2ms push=50ms");
+  }
+
+  @Test
+  public void timeOfRepeatedPhaseIsAddedUp() {
+    phases.start(Phase.PUSH);
+    advance(5);
+    phases.start(Phase.UPDATE_STATES);
+    advance(1);
+    phases.start(Phase.PUSH);
+    advance(7);
+    phases.stop();
+
+    assertThat(phases.getNanos(Phase.PUSH)).isEqualTo(MILLISECONDS.toNanos(12));
+    assertThat(phases.toString()).isEqualTo("push=12ms update_states=1ms");
+  }
+
+  @Test
+  public void onlyPhasesWhichRanAreRecorded() {
+    ReplicationMetrics metrics = mock(ReplicationMetrics.class);
+    phases.start(Phase.LIST_REMOTE);
+    advance(3);
+    phases.stop();
+
+    phases.record(metrics, "mirror");
+
+    verify(metrics).recordPushPhase("mirror", "list_remote", MILLISECONDS.toNanos(3));
+    verify(metrics, never()).recordPushPhase(eq("mirror"), eq("push"), anyLong());
+  }
+
+  private void advance(long millis) {
+    now += MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushProgressMonitorTest {
+  private static final String DESTINATION = "mirror";
+
+  private ReplicationMetrics metrics;
+  private PushProgressMonitor monitor;
+
+  @Before
+  public void setUp() {
+    metrics = mock(ReplicationMetrics.class);
+    monitor = new PushProgressMonitor(metrics, DESTINATION);
+  }
+
+  @Test
+  public void statusShowsTaskInProgress() {
+    assertThat(monitor.getStatus()).isEmpty();
+
+    monitor.beginTask(JGitText.get().writingObjects, 40);
+    monitor.update(10);
+    monitor.update(2);
+    assertThat(monitor.getStatus()).isEqualTo(JGitText.get().writingObjects + ": 12/40");
+
+    monitor.endTask();
+    assertThat(monitor.getStatus()).isEmpty();
+  }
+
+  @Test
+  public void statusOfTaskWithUnknownWork() {
+    monitor.beginTask(JGitText.get().compressingObjects, ProgressMonitor.UNKNOWN);
+    monitor.update(3);
+
+    assertThat(monitor.getStatus()).isEqualTo(JGitText.get().compressingObjects + ": 3");
+  }
+
+  @Test
+  public void phasesAreRecorded() {
+    monitor.beginTask(JGitText.get().compressingObjects, 5);
+    monitor.update(5);
+    monitor.endTask();
+    monitor.beginTask(JGitText.get().writingObjects, 7);
+    monitor.update(7);
+    monitor.endTask();
+    verify(metrics, never()).recordTransferTime(eq(DESTINATION), anyLong());
+
+    monitor.pushed();
+
+    verify(metrics).recordCompressionTime(eq(DESTINATION), anyLong());
+    verify(metrics).recordObjectsSent(DESTINATION, 7);
+    verify(metrics).recordTransferTime(eq(DESTINATION), anyLong());
+  }
+
+  @Test
+  public void pushWithoutPackRecordsNoTransfer() {
+    monitor.pushed();
+
+    verify(metrics, never()).recordTransferTime(eq(DESTINATION), anyLong());
+    verify(metrics, never()).recordObjectsSent(eq(DESTINATION), anyLong());
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushedRefsCacheTest {
+  private static final ObjectId ID_1 =
+      ObjectId.fromString("0000000000000000000000000000000000000001");
+  private static final ObjectId ID_2 =
+      ObjectId.fromString("0000000000000000000000000000000000000002");
+  private static final String MASTER = "refs/heads/master";
+
+  private Config config;
+  private ReplicationConfig replConfig;
+  private ReplicationMetrics metrics;
+  private PushedRefsCache cache;
+  private URIish uri;
+
+  @Before
+  public void setUp() throws Exception {
+    config = new Config();
+    config.setInt("replication", null, "pushedRefsCacheSize", 10);
+    replConfig = mock(ReplicationConfig.class);
+    when(replConfig.getConfig()).thenReturn(config);
+    metrics = mock(ReplicationMetrics.class);
+    cache = new PushedRefsCache(replConfig, metrics);
+    uri = new URIish("ssh://mirror.example.com/project.git");
+  }
+
+  @Test
+  public void refPushedWithSameValueIsSkipped() throws Exception {
+    cache.update(uri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+
+    assertThat(cache.isPushed(uri, update(MASTER, ID_1, null))).isTrue();
+    assertThat(cache.isPushed(uri, update(MASTER, ID_2, null))).isFalse();
+    assertThat(cache.isPushed(new URIish("ssh://other/project.git"), update(MASTER, ID_1, null)))
+        .isFalse();
+    verify(metrics).pushedRefsCacheHit();
+    verify(metrics, times(2)).pushedRefsCacheMiss();
+  }
+
+  @Test
+  public void rejectedRefIsForgotten() throws Exception {
+    cache.update(uri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+
+    cache.update(
+        uri,
+        ImmutableList.of(update(MASTER, ID_2, RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD)));
+
+    assertThat(cache.isPushed(uri, update(MASTER, ID_1, null))).isFalse();
+  }
+
+  @Test
+  public void refsOfUriAreForgottenWhenPushFails() throws Exception {
+    URIish otherUri = new URIish("ssh://other/project.git");
+    cache.update(uri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+    cache.update(otherUri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+
+    cache.invalidate(uri);
+
+    assertThat(cache.isPushed(uri, update(MASTER, ID_1, null))).isFalse();
+    assertThat(cache.isPushed(otherUri, update(MASTER, ID_1, null))).isTrue();
+  }
+
+  @Test
+  public void deletionIsNeverSkipped() throws Exception {
+    cache.update(uri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+    cache.update(
+        uri, ImmutableList.of(update(MASTER, ObjectId.zeroId(), RemoteRefUpdate.Status.OK)));
+
+    assertThat(cache.isPushed(uri, update(MASTER, ObjectId.zeroId(), null))).isFalse();
+    assertThat(cache.isPushed(uri, update(MASTER, ID_1, null))).isFalse();
+  }
+
+  @Test
+  public void cacheIsDisabledByDefault() throws Exception {
+    config.unset("replication", null, "pushedRefsCacheSize");
+    cache = new PushedRefsCache(replConfig, metrics);
+    cache.update(uri, ImmutableList.of(update(MASTER, ID_1, RemoteRefUpdate.Status.OK)));
+
+    assertThat(cache.isPushed(uri, update(MASTER, ID_1, null))).isFalse();
+    verify(metrics, never()).pushedRefsCacheMiss();
+  }
+
+  private static RemoteRefUpdate update(String name, ObjectId id, RemoteRefUpdate.Status status) {
+    RemoteRefUpdate update = mock(RemoteRefUpdate.class);
+    when(update.getRemoteName()).thenReturn(name);
+    when(update.getNewObjectId()).thenReturn(id);
+    when(update.isDelete()).thenReturn(ObjectId.zeroId().equals(id));
+    when(update.getStatus()).thenReturn(status);
+    return update;
+  }
+}
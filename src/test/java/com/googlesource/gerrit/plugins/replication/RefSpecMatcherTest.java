@@ -0,0 +1,146 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.Test;
+
+public class RefSpecMatcherTest {
+  private static final ImmutableList<String> REFS =
+      ImmutableList.of(
+          "HEAD",
+          "refs/heads/master",
+          "refs/heads/stable-3.4",
+          "refs/heads/team/master",
+          "refs/heads/team/feature/master",
+          "refs/heads/teammaster",
+          "refs/heads/",
+          "refs/tags/v3.4.0",
+          "refs/meta/config",
+          "refs/meta/external-ids",
+          "refs/changes/34/1234/5",
+          "refs/changes/34/1234/meta",
+          "refs/changes/",
+          "refs/users/01/1000001",
+          "refs/sequences/changes",
+          "refs/",
+          "refs",
+          "");
+
+  @Test
+  public void defaultRefSpec() {
+    assertMatchesLikeJGit(
+        ImmutableList.of(new RefSpec().setSourceDestination("refs/*", "refs/*")));
+  }
+
+  @Test
+  public void exactRefSpecs() {
+    assertMatchesLikeJGit(
+        specs("refs/heads/master:refs/heads/mirror", "+refs/meta/config:refs/meta/config"));
+  }
+
+  @Test
+  public void exactRefSpecWithoutDestination() {
+    assertMatchesLikeJGit(specs("refs/heads/master"));
+  }
+
+  @Test
+  public void wildcardRefSpecs() {
+    assertMatchesLikeJGit(
+        specs(
+            "+refs/heads/*:refs/heads/*",
+            "refs/tags/*:refs/tags/*",
+            "+refs/changes/*:refs/mirror/changes/*"));
+  }
+
+  @Test
+  public void wildcardRefSpecsInsideComponents() {
+    assertMatchesLikeJGit(
+        specs(
+            "refs/heads/team*:refs/heads/other*",
+            "refs/heads/*/master:refs/heads/*/mirror",
+            "refs/changes/*/meta:refs/meta-changes/*"));
+  }
+
+  @Test
+  public void firstMatchingRefSpecIsUsed() {
+    assertMatchesLikeJGit(
+        specs(
+            "refs/heads/team/*:refs/heads/a/*",
+            "refs/heads/*:refs/heads/b/*",
+            "refs/heads/master:refs/heads/c",
+            "refs/*:refs/d/*",
+            "refs/heads/*:refs/heads/e/*"));
+  }
+
+  @Test
+  public void exactRefSpecBeforeWildcardIsUsed() {
+    assertMatchesLikeJGit(
+        specs("refs/heads/master:refs/heads/a", "refs/heads/*:refs/heads/b/*", "refs/*:refs/*"));
+  }
+
+  @Test
+  public void noRefSpec() {
+    assertMatchesLikeJGit(ImmutableList.of());
+  }
+
+  @Test
+  public void exactRefSpecIsNotExpanded() {
+    RefSpec spec = new RefSpec("refs/heads/master:refs/heads/mirror");
+
+    assertThat(RefSpecMatcher.forSource(ImmutableList.of(spec)).match("refs/heads/master"))
+        .isSameInstanceAs(spec);
+  }
+
+  private static void assertMatchesLikeJGit(List<RefSpec> specs) {
+    RefSpecMatcher sources = RefSpecMatcher.forSource(specs);
+    RefSpecMatcher destinations = RefSpecMatcher.forDestination(specs);
+    for (String ref : REFS) {
+      RefSpec src = null;
+      for (RefSpec s : specs) {
+        if (s.matchSource(ref)) {
+          src = s.expandFromSource(ref);
+          break;
+        }
+      }
+      RefSpec dst = null;
+      for (RefSpec s : specs) {
+        if (s.matchDestination(ref)) {
+          dst = s.expandFromDestination(ref);
+          break;
+        }
+      }
+      assertWithMessage("source %s", ref).that(sources.match(ref)).isEqualTo(src);
+      assertWithMessage("source %s", ref).that(sources.matches(ref)).isEqualTo(src != null);
+      assertWithMessage("destination %s", ref).that(destinations.match(ref)).isEqualTo(dst);
+      assertWithMessage("destination %s", ref)
+          .that(destinations.matches(ref))
+          .isEqualTo(dst != null);
+    }
+  }
+
+  private static ImmutableList<RefSpec> specs(String... specs) {
+    ImmutableList.Builder<RefSpec> b = ImmutableList.builder();
+    for (String s : specs) {
+      b.add(new RefSpec(s));
+    }
+    return b.build();
+  }
+}
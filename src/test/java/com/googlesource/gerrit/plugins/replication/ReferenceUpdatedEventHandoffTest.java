@@ -0,0 +1,185 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.googlesource.gerrit.plugins.replication.ReplicationQueue.ReferenceUpdatedEvent;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceUpdatedEventHandoffTest {
+  private static final ReferenceUpdatedEvent EVENT_A =
+      ReferenceUpdatedEvent.create("myProject", "refs/heads/a");
+  private static final ReferenceUpdatedEvent EVENT_B =
+      ReferenceUpdatedEvent.create("myProject", "refs/heads/b");
+  private static final ReferenceUpdatedEvent EVENT_C =
+      ReferenceUpdatedEvent.create("myProject", "refs/heads/c");
+
+  private FileSystem fileSystem;
+  private Path overflowDir;
+  private ExecutorService executor;
+  private List<ReferenceUpdatedEvent> written;
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    overflowDir = fileSystem.getPath("replication_site", "overflow");
+    executor = Executors.newSingleThreadExecutor();
+    written = new CopyOnWriteArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    fileSystem.close();
+  }
+
+  @Test
+  public void queuedEventsAreWritten() throws Exception {
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+    handoff.start(executor);
+
+    assertThat(handoff.offer(EVENT_A)).isTrue();
+    assertThat(handoff.offer(EVENT_B)).isTrue();
+    awaitWritten(2);
+    handoff.stop();
+
+    assertThat(written).containsExactly(EVENT_A, EVENT_B).inOrder();
+  }
+
+  @Test
+  public void eventsAreOnDiskOnceAcknowledged() throws Exception {
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+
+    assertThat(handoff.offer(EVENT_A)).isTrue();
+    assertThat(handoff.queued()).isEqualTo(1);
+    assertThat(overflowFiles()).isEqualTo(1);
+
+    // The writer never ran, as after a crash.
+    ReferenceUpdatedEventHandoff restarted = newHandoff(10);
+    restarted.start(executor);
+    awaitWritten(1);
+    restarted.stop();
+
+    assertThat(written).containsExactly(EVENT_A);
+  }
+
+  @Test
+  public void eventsOverflowToDiskWhenQueueIsFull() throws Exception {
+    ReferenceUpdatedEventHandoff handoff = newHandoff(1);
+
+    assertThat(handoff.offer(EVENT_A)).isTrue();
+    assertThat(handoff.offer(EVENT_B)).isTrue();
+    assertThat(handoff.offer(EVENT_C)).isTrue();
+    assertThat(handoff.queued()).isEqualTo(1);
+
+    handoff.start(executor);
+    awaitWritten(3);
+    handoff.stop();
+
+    assertThat(written).containsExactly(EVENT_A, EVENT_B, EVENT_C).inOrder();
+    assertThat(overflowFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void logFilesOfPreviousRunAreReadBackInWrittenOrder() throws Exception {
+    Files.createDirectories(overflowDir);
+    Files.write(overflowDir.resolve("events-2.log"), "refs/heads/a myProject\n".getBytes(UTF_8));
+    Files.write(overflowDir.resolve("events-10.log"), "refs/heads/b myProject\n".getBytes(UTF_8));
+    Files.write(overflowDir.resolve("events-11.log"), "refs/heads/c my".getBytes(UTF_8));
+
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+    handoff.start(executor);
+    awaitWritten(2);
+    handoff.offer(EVENT_C);
+    awaitWritten(3);
+    handoff.stop();
+
+    assertThat(written).containsExactly(EVENT_A, EVENT_B, EVENT_C).inOrder();
+    assertThat(overflowFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void queuedEventsAreWrittenToDiskOnStopAndDrainedOnStart() throws Exception {
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+    handoff.offer(EVENT_A);
+    handoff.stop();
+    assertThat(written).isEmpty();
+    assertThat(overflowFiles()).isEqualTo(1);
+
+    ReferenceUpdatedEventHandoff restarted = newHandoff(10);
+    restarted.start(executor);
+    awaitWritten(1);
+    restarted.stop();
+
+    assertThat(written).containsExactly(EVENT_A);
+  }
+
+  @Test
+  public void eventOfferedAfterStopIsWrittenToDisk() throws Exception {
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+    handoff.start(executor);
+    handoff.stop();
+
+    assertThat(handoff.offer(EVENT_A)).isTrue();
+    assertThat(handoff.queued()).isEqualTo(0);
+    assertThat(overflowFiles()).isEqualTo(1);
+  }
+
+  @Test
+  public void eventIsRejectedWhenItCannotBeWrittenToDisk() throws Exception {
+    Files.createDirectories(overflowDir.getParent());
+    Files.createFile(overflowDir);
+    ReferenceUpdatedEventHandoff handoff = newHandoff(10);
+
+    assertThat(handoff.offer(EVENT_A)).isFalse();
+    assertThat(handoff.queued()).isEqualTo(0);
+  }
+
+  private ReferenceUpdatedEventHandoff newHandoff(int capacity) {
+    return new ReferenceUpdatedEventHandoff(capacity, overflowDir, written::addAll);
+  }
+
+  private long overflowFiles() throws Exception {
+    if (!Files.exists(overflowDir)) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.list(overflowDir)) {
+      return files.count();
+    }
+  }
+
+  private void awaitWritten(int count) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (written.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(written).hasSize(count);
+  }
+}
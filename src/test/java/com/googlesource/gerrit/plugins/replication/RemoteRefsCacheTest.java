@@ -0,0 +1,163 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteRefsCacheTest {
+  private static final long MAX_AGE = 60;
+  private static final long SIZE = 1000;
+  private static final long EXPIRY = 3600;
+  private static final ObjectId ID_1 =
+      ObjectId.fromString("0000000000000000000000000000000000000001");
+  private static final ObjectId ID_2 =
+      ObjectId.fromString("0000000000000000000000000000000000000002");
+
+  private RemoteRefsCache cache;
+  private URIish uri;
+  private Map<String, Ref> remote;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new RemoteRefsCache(SIZE, EXPIRY);
+    uri = new URIish("http://example.com/myProject.git");
+    remote = new HashMap<>();
+    addRemote("refs/heads/master", ID_1);
+    addRemote("refs/changes/01/1/1", ID_1);
+  }
+
+  @Test
+  public void uncachedUriIsNotReturned() throws Exception {
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+  }
+
+  @Test
+  public void cachedRefsMatchingSampleAreReturned() throws Exception {
+    cache.put(uri, remote);
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).get()).isEqualTo(remote);
+  }
+
+  @Test
+  public void cachedRefsAreDroppedWhenSampleDiffers() throws Exception {
+    cache.put(uri, remote);
+    addRemote("refs/heads/master", ID_2);
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+  }
+
+  @Test
+  public void cachedRefsAreDroppedWhenSampledRefIsDeleted() throws Exception {
+    cache.put(uri, remote);
+    remote.remove("refs/heads/master");
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+  }
+
+  @Test
+  public void cachedRefsAreDroppedWhenExpired() throws Exception {
+    cache.put(uri, remote);
+
+    assertThat(cache.get(uri, 0, this::sample).isPresent()).isFalse();
+  }
+
+  @Test
+  public void cachedRefsAreDroppedAfterExpiryWhateverTheMaxAge() throws Exception {
+    cache = new RemoteRefsCache(SIZE, 0);
+    cache.put(uri, remote);
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+  }
+
+  @Test
+  public void leastRecentlyUsedUrisAreDroppedBeyondSize() throws Exception {
+    cache = new RemoteRefsCache(remote.size() + 1, EXPIRY);
+    URIish other = new URIish("http://example.com/otherProject.git");
+    cache.put(uri, remote);
+    cache.put(other, remote);
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+    assertThat(cache.get(other, MAX_AGE, this::sample).get()).isEqualTo(remote);
+  }
+
+  @Test
+  public void successfulPushesAreApplied() throws Exception {
+    cache.put(uri, remote);
+    addRemote("refs/heads/master", ID_2);
+    addRemote("refs/heads/stable", ID_1);
+    remote.remove("refs/changes/01/1/1");
+
+    cache.update(
+        uri,
+        ImmutableList.of(
+            update("refs/heads/master", ID_2, RemoteRefUpdate.Status.OK),
+            update("refs/heads/stable", ID_1, RemoteRefUpdate.Status.UP_TO_DATE),
+            update("refs/changes/01/1/1", ObjectId.zeroId(), RemoteRefUpdate.Status.OK)));
+
+    Map<String, Ref> cached = cache.get(uri, MAX_AGE, this::sample).get();
+    assertThat(cached.keySet()).containsExactly("refs/heads/master", "refs/heads/stable");
+    assertThat(cached.get("refs/heads/master").getObjectId()).isEqualTo(ID_2);
+  }
+
+  @Test
+  public void unsuccessfulPushesDropCachedRefs() throws Exception {
+    cache.put(uri, remote);
+
+    cache.update(
+        uri,
+        ImmutableList.of(
+            update("refs/heads/master", ID_2, RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD)));
+
+    assertThat(cache.get(uri, MAX_AGE, this::sample).isPresent()).isFalse();
+  }
+
+  private Map<String, Ref> sample(List<String> prefixes) {
+    Map<String, Ref> sampled = new HashMap<>();
+    for (Ref ref : remote.values()) {
+      if (prefixes.stream().anyMatch(ref.getName()::startsWith)) {
+        sampled.put(ref.getName(), ref);
+      }
+    }
+    return sampled;
+  }
+
+  private void addRemote(String name, ObjectId id) {
+    remote.put(name, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, name, id));
+  }
+
+  private static RemoteRefUpdate update(String name, ObjectId id, RemoteRefUpdate.Status status) {
+    RemoteRefUpdate update = mock(RemoteRefUpdate.class);
+    when(update.getRemoteName()).thenReturn(name);
+    when(update.getNewObjectId()).thenReturn(id);
+    when(update.isDelete()).thenReturn(ObjectId.zeroId().equals(id));
+    when(update.getStatus()).thenReturn(status);
+    return update;
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.io.IOException;
+import java.util.Arrays;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Test;
+
+public class ReplicateRefUpdateCodecTest {
+  private static final ReplicateRefUpdate REF_UPDATE =
+      ReplicateRefUpdate.create(
+          "myProject", "refs/heads/mäster", "http://example.com/myProject.git", "myDest");
+
+  @Test
+  public void encodedUpdateCanBeDecoded() throws Exception {
+    byte[] record = ReplicateRefUpdateCodec.encode(REF_UPDATE);
+
+    assertThat(ReplicateRefUpdateCodec.isBinary(record)).isTrue();
+    assertThat(ReplicateRefUpdateCodec.decode(record)).isEqualTo(REF_UPDATE);
+  }
+
+  @Test
+  public void decodedUpdateHasSameKey() throws Exception {
+    ReplicateRefUpdate update =
+        ReplicateRefUpdate.create(
+            "myProject", "myRef", new URIish("ssh://example.com/myProject.git"), "myDest");
+
+    assertThat(ReplicateRefUpdateCodec.decode(ReplicateRefUpdateCodec.encode(update)).sha1())
+        .isEqualTo(update.sha1());
+  }
+
+  @Test
+  public void jsonRecordIsNotBinary() {
+    assertThat(ReplicateRefUpdateCodec.isBinary("{\"project\":\"myProject\"}".getBytes(UTF_8)))
+        .isFalse();
+    assertThat(ReplicateRefUpdateCodec.isBinary(new byte[0])).isFalse();
+  }
+
+  @Test
+  public void truncatedRecordIsRejected() {
+    byte[] record = ReplicateRefUpdateCodec.encode(REF_UPDATE);
+    byte[] truncated = Arrays.copyOf(record, record.length - 1);
+
+    assertThrows(IOException.class, () -> ReplicateRefUpdateCodec.decode(truncated));
+  }
+
+  @Test
+  public void unknownVersionIsRejected() {
+    byte[] record = ReplicateRefUpdateCodec.encode(REF_UPDATE);
+    record[1] = ReplicateRefUpdateCodec.VERSION + 1;
+
+    assertThrows(IOException.class, () -> ReplicateRefUpdateCodec.decode(record));
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.security.MessageDigest;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class ReplicateRefUpdateTest {
+  @Test
+  public void keyIsUnchanged() {
+    ReplicateRefUpdate update = ReplicateRefUpdate.create("project", "ref", "uri", "remote");
+
+    assertThat(update.sha1()).isEqualTo("49625b2a975c76fc60ee47b60dc048bd93c07859");
+  }
+
+  @Test
+  public void keyIsHashOfJoinedFields() throws Exception {
+    assertKeyIsHashOfJoinedFields("myProject", "refs/heads/master", "git://host/x.git", "dest");
+    assertKeyIsHashOfJoinedFields("pröject/日本", "refs/heads/😀", "git://h/x", "r");
+    assertKeyIsHashOfJoinedFields("unpaired\uD800", "refs/heads/\uDC00x", "", "r");
+  }
+
+  @Test
+  public void keyIsComputedOnce() {
+    ReplicateRefUpdate update = ReplicateRefUpdate.create("project", "ref", "uri", "remote");
+
+    assertThat(update.sha1()).isSameInstanceAs(update.sha1());
+  }
+
+  private static void assertKeyIsHashOfJoinedFields(
+      String project, String ref, String uri, String remote) throws Exception {
+    byte[] joined = String.join("\n", project, ref, uri, remote).getBytes(UTF_8);
+    ObjectId expected = ObjectId.fromRaw(MessageDigest.getInstance("SHA-1").digest(joined));
+
+    assertThat(ReplicateRefUpdate.create(project, ref, uri, remote).sha1())
+        .isEqualTo(expected.name());
+  }
+}
@@ -45,7 +45,7 @@ import org.junit.Test;
     name = "replication",
     sysModule = "com.googlesource.gerrit.plugins.replication.ReplicationModule")
 public class ReplicationFanoutIT extends ReplicationDaemon {
-  private ReplicationTasksStorage tasksStorage;
+  private ReplicationTasksStore tasksStorage;
 
   @Override
   public void setUpTestPlugin() throws Exception {
@@ -55,7 +55,7 @@ public class ReplicationFanoutIT extends ReplicationDaemon {
     setReplicationDestinationRemoteConfig("remote1", "suffix1", Optional.of("not-used-project"));
 
     super.setUpTestPlugin();
-    tasksStorage = plugin.getSysInjector().getInstance(ReplicationTasksStorage.class);
+    tasksStorage = plugin.getSysInjector().getInstance(ReplicationTasksStore.class);
   }
 
   @After
@@ -0,0 +1,87 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class ReplicationMetricsTest {
+  private CallbackMetric1<String, Long> waitingTasks;
+  private CallbackMetric1<String, Long> runningTasks;
+  private ReplicationTasksStore store;
+  private Runnable trigger;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    MetricMaker metricMaker = mock(MetricMaker.class);
+    waitingTasks = mock(CallbackMetric1.class);
+    runningTasks = mock(CallbackMetric1.class);
+    doReturn(waitingTasks)
+        .when(metricMaker)
+        .newCallbackMetric(
+            eq("tasks_waiting"), eq(Long.class), any(Description.class), any(Field.class));
+    doReturn(runningTasks)
+        .when(metricMaker)
+        .newCallbackMetric(
+            eq("tasks_running"), eq(Long.class), any(Description.class), any(Field.class));
+    store = mock(ReplicationTasksStore.class);
+    when(store.waitingCountsByRemote()).thenReturn(ImmutableMap.of("mirror", 3L, "backup", 1L));
+    when(store.runningCountsByRemote()).thenReturn(ImmutableMap.of("mirror", 2L));
+
+    new ReplicationMetrics("replication", metricMaker, () -> store);
+
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(metricMaker).newTrigger(eq(waitingTasks), eq(runningTasks), captor.capture());
+    trigger = captor.getValue();
+  }
+
+  @Test
+  public void taskGaugesAreSetPerDestination() throws Exception {
+    trigger.run();
+
+    verify(waitingTasks).set("mirror", 3L);
+    verify(waitingTasks).set("backup", 1L);
+    verify(waitingTasks).prune();
+    verify(runningTasks).set("mirror", 2L);
+    verify(runningTasks, never()).set(eq("backup"), any());
+    verify(runningTasks).prune();
+  }
+
+  @Test
+  public void taskCountsAreNotReadAgainWithinMaxAge() throws Exception {
+    trigger.run();
+    trigger.run();
+
+    verify(store, times(1)).waitingCountsByRemote();
+    verify(store, times(1)).runningCountsByRemote();
+    verify(waitingTasks, times(2)).set("mirror", 3L);
+  }
+}
@@ -39,7 +39,7 @@ public class ReplicationStorageDaemon extends ReplicationDaemon {
           (TEST_REPLICATION_DELAY_SECONDS + TEST_REPLICATION_RETRY_MINUTES * 60)
                   * TEST_REPLICATION_MAX_RETRIES
               + 10);
-  protected ReplicationTasksStorage tasksStorage;
+  protected ReplicationTasksStore tasksStorage;
   protected DestinationsCollection destinationCollection;
   protected ReplicationConfig replicationConfig;
 
@@ -51,7 +51,7 @@ public class ReplicationStorageDaemon extends ReplicationDaemon {
         "suffix1",
         Optional.of("not-used-project")); // Simulates a full replication.config initialization
     super.setUpTestPlugin();
-    tasksStorage = plugin.getSysInjector().getInstance(ReplicationTasksStorage.class);
+    tasksStorage = plugin.getSysInjector().getInstance(ReplicationTasksStore.class);
     destinationCollection = plugin.getSysInjector().getInstance(DestinationsCollection.class);
     replicationConfig = plugin.getSysInjector().getInstance(ReplicationConfig.class);
   }
@@ -70,7 +70,7 @@ public class ReplicationStorageDaemon extends ReplicationDaemon {
     Path waitingUpdates = refUpdates.resolve("waiting");
     for (ReplicationTasksStorage.ReplicateRefUpdate r : listWaitingReplicationTasks(refRegex)) {
       try {
-        Files.deleteIfExists(waitingUpdates.resolve(r.sha1()));
+        Files.deleteIfExists(waitingUpdates.resolve(r.sha1().substring(0, 2)).resolve(r.sha1()));
       } catch (IOException e) {
         throw new RuntimeException("Couldn't delete waiting task", e);
       }
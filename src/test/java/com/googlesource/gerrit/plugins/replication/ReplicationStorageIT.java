@@ -340,8 +340,8 @@ public class ReplicationStorageIT extends ReplicationStorageDaemon {
   private boolean isTaskCleanedUp() {
     Path refUpdates = replicationConfig.getEventsDirectory().resolve("ref-updates");
     Path runningUpdates = refUpdates.resolve("running");
-    try {
-      return Files.list(runningUpdates).count() == 0;
+    try (Stream<Path> files = Files.walk(runningUpdates)) {
+      return files.noneMatch(Files::isRegularFile);
     } catch (IOException e) {
       throw new RuntimeException(e.getMessage(), e);
     }
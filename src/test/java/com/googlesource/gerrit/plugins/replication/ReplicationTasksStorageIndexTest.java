@@ -0,0 +1,98 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs the storage tests against a store that is not shared and relies on its in-memory index. */
+public class ReplicationTasksStorageIndexTest extends ReplicationTasksStorageTest {
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    storage = new ReplicationTasksStorage(storageSite, false);
+  }
+
+  @Test
+  public void indexIsLoadedFromExistingTasks() throws Exception {
+    new ReplicationTasksStorage(storageSite).create(REF_UPDATE);
+
+    assertTrue(storage.isWaiting(uriUpdates));
+    assertThat(storage.start(uriUpdates)).containsExactly(REF_UPDATE.ref());
+  }
+
+  @Test
+  public void recoverAllReloadsIndex() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+
+    storage.recoverAll();
+    assertTrue(storage.isWaiting(uriUpdates));
+    assertThatStream(storage.streamRunning()).isEmpty();
+  }
+
+  @Test
+  public void tasksAreCountedPerRemote() throws Exception {
+    ReplicateRefUpdate otherRemote = ReplicateRefUpdate.create(PROJECT, REF, URISH, "backup");
+    ReplicateRefUpdate running = ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+    storage.create(REF_UPDATE);
+    storage.create(otherRemote);
+    storage.create(running);
+    storage.start(TestUriUpdates.create(running));
+
+    for (ReplicationTasksStore s :
+        ImmutableList.of(storage, new ReplicationTasksStorage(storageSite, false))) {
+      assertThat(s.waitingCountsByRemote()).containsExactly(REMOTE, 1L, "backup", 1L);
+      assertThat(s.runningCountsByRemote()).containsExactly(REMOTE, 1L);
+    }
+  }
+
+  @Test
+  public void taskRemovedFromDiskIsNotStarted() throws Exception {
+    storage.create(REF_UPDATE);
+    String key = REF_UPDATE.sha1();
+    Path waiting = storageSite.resolve("waiting").resolve(key.substring(0, 2)).resolve(key);
+    Files.delete(waiting);
+
+    assertThat(storage.start(uriUpdates)).isEmpty();
+    assertFalse(storage.isWaiting(uriUpdates));
+  }
+
+  @Test
+  public void taskWhichFailedToStartIsStillWaiting() throws Exception {
+    storage.create(REF_UPDATE);
+    String key = REF_UPDATE.sha1();
+    // A non-empty directory in place of the running task makes the rename fail.
+    Path running = storageSite.resolve("running").resolve(key.substring(0, 2)).resolve(key);
+    Files.createDirectories(running.resolve("blocker"));
+
+    assertThat(storage.start(uriUpdates)).isEmpty();
+    assertTrue(storage.isWaiting(uriUpdates));
+
+    Files.delete(running.resolve("blocker"));
+    Files.delete(running);
+    assertThat(storage.start(uriUpdates)).containsExactly(REF_UPDATE.ref());
+  }
+}
@@ -18,13 +18,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.RecordFormat;
 import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
 import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.Task;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import org.eclipse.jgit.transport.URIish;
 import org.junit.After;
 import org.junit.Before;
@@ -346,6 +351,58 @@ public class ReplicationTasksStorageTaskTest {
     assertIsWaiting(persistedView);
   }
 
+  @Test
+  public void tasksAreShardedByKeyPrefix() throws Exception {
+    Task task = tasksStorage.new Task(REF_UPDATE);
+    String prefix = task.taskKey.substring(0, 2);
+
+    task.create();
+    assertEquals(prefix, task.waiting.getParent().getFileName().toString());
+    task.start();
+    assertEquals(prefix, task.running.getParent().getFileName().toString());
+    assertIsRunning(task);
+  }
+
+  @Test
+  public void flatLayoutTasksAreMigratedOnRecovery() throws Exception {
+    Task waiting = tasksStorage.new Task(REF_UPDATE);
+    Task running =
+        tasksStorage.new Task(ReplicateRefUpdate.create(PROJECT, "otherRef", URISH, REMOTE));
+    waiting.create();
+    running.create();
+    running.start();
+    moveToFlatLayout(waiting.waiting, waiting.taskKey);
+    moveToFlatLayout(running.running, running.taskKey);
+    assertNotWaiting(waiting);
+    assertNotRunning(running);
+
+    tasksStorage.recoverAll();
+    assertIsWaiting(waiting);
+    assertIsWaiting(running);
+    assertNotRunning(running);
+  }
+
+  @Test
+  public void binaryAndJsonTasksCanBeReadByEitherFormat() throws Exception {
+    ReplicationTasksStorage binaryStorage =
+        new ReplicationTasksStorage(
+            fileSystem.getPath("replication_site"), true, RecordFormat.BINARY);
+    ReplicateRefUpdate binaryUpdate =
+        ReplicateRefUpdate.create(PROJECT, "binaryRef", URISH, REMOTE);
+    binaryStorage.new Task(binaryUpdate).create();
+    tasksStorage.new Task(REF_UPDATE).create();
+
+    for (ReplicationTasksStorage storage : Arrays.asList(tasksStorage, binaryStorage)) {
+      assertEquals(
+          ImmutableSet.of(REF_UPDATE, binaryUpdate),
+          storage.streamWaiting().collect(ImmutableSet.toImmutableSet()));
+    }
+  }
+
+  private static void moveToFlatLayout(Path sharded, String taskKey) throws IOException {
+    Files.move(sharded, sharded.getParent().getParent().resolve(taskKey));
+  }
+
   protected static void assertIsWaiting(Task task) {
     assertTrue(task.isWaiting());
   }
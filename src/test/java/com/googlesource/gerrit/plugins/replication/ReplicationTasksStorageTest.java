@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import com.google.common.truth.IterableSubject;
@@ -27,6 +28,13 @@ import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.Repli
 import java.net.URISyntaxException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.eclipse.jgit.transport.URIish;
@@ -34,6 +42,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+/**
+ * Tests of the {@link ReplicationTasksStore} contract. Every backend extends this class and replaces
+ * {@link #storage} with its own instance.
+ */
 public class ReplicationTasksStorageTest {
   protected static final String PROJECT = "myProject";
   protected static final String REF = "myRef";
@@ -42,7 +54,7 @@ public class ReplicationTasksStorageTest {
   protected static final ReplicateRefUpdate REF_UPDATE =
       ReplicateRefUpdate.create(PROJECT, REF, URISH, REMOTE);
 
-  protected ReplicationTasksStorage storage;
+  protected ReplicationTasksStore storage;
   protected FileSystem fileSystem;
   protected Path storageSite;
   protected UriUpdates uriUpdates;
@@ -72,6 +84,36 @@ public class ReplicationTasksStorageTest {
     assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE);
   }
 
+  @Test
+  public void canCreateSeveralUpdatesAtOnce() throws Exception {
+    ReplicateRefUpdate other = ReplicateRefUpdate.create(PROJECT, "otherRef", URISH, REMOTE);
+    storage.create(REF_UPDATE);
+
+    storage.createAll(ImmutableList.of(REF_UPDATE, other));
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, other);
+  }
+
+  @Test
+  public void canCountWaitingUpdates() throws Exception {
+    assertEquals(0, storage.waitingCount());
+
+    storage.create(REF_UPDATE);
+    storage.create(ReplicateRefUpdate.create(PROJECT, "otherRef", URISH, REMOTE));
+    assertEquals(2, storage.waitingCount());
+
+    storage.start(uriUpdates);
+    assertEquals(1, storage.waitingCount());
+  }
+
+  @Test
+  public void noUpdateIsBuildingOnceCreated() throws Exception {
+    assertEquals(0, storage.buildingCount());
+
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+    assertEquals(0, storage.buildingCount());
+  }
+
   @Test
   public void canCheckIfUpdateIsWaiting() {
     storage.create(REF_UPDATE);
@@ -374,7 +416,62 @@ public class ReplicationTasksStorageTest {
     assertThatStream(storage.streamRunning()).isEmpty();
   }
 
-  protected static void assertNoIncompleteTasks(ReplicationTasksStorage storage) {
+  @Test
+  public void concurrentTasksAreAllCompleted() throws Exception {
+    int threads = 8;
+    int tasksPerThread = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> workers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String project = PROJECT + t;
+        workers.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < tasksPerThread; i++) {
+                    UriUpdates updates =
+                        TestUriUpdates.create(
+                            ReplicateRefUpdate.create(project, "refs/heads/" + i, URISH, REMOTE));
+                    updates.getReplicateRefUpdates().forEach(storage::create);
+                    assertThat(storage.start(updates)).hasSize(1);
+                    storage.reset(updates);
+                    assertThat(storage.start(updates)).hasSize(1);
+                    storage.finish(updates);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> worker : workers) {
+        worker.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertNoIncompleteTasks(storage);
+  }
+
+  @Test
+  public void concurrentStartOfSameTaskStartsItOnce() throws Exception {
+    int threads = 8;
+    storage.create(REF_UPDATE);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Set<String>>> starters = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        starters.add(executor.submit(() -> storage.start(uriUpdates)));
+      }
+      int started = 0;
+      for (Future<Set<String>> starter : starters) {
+        started += starter.get(60, TimeUnit.SECONDS).size();
+      }
+      assertEquals(1, started);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThatStream(storage.streamRunning()).containsExactly(REF_UPDATE);
+  }
+
+  protected static void assertNoIncompleteTasks(ReplicationTasksStore storage) {
     assertThatStream(storage.streamWaiting()).isEmpty();
     assertThatStream(storage.streamRunning()).isEmpty();
   }
@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Range;
+import com.googlesource.gerrit.plugins.replication.RetryPolicy.Backoff;
+import com.googlesource.gerrit.plugins.replication.RetryPolicy.Jitter;
+import java.util.Random;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+  private final Random random = new Random(42);
+
+  @Test
+  public void defaultPolicyRetriesAfterReplicationRetry() {
+    RetryPolicy policy = RetryPolicy.fromConfig(new Config(), "mirror", 2);
+
+    assertThat(policy.retryDelaySeconds(1, 0)).isEqualTo(120);
+    assertThat(policy.retryDelaySeconds(5, 120)).isEqualTo(120);
+    assertThat(policy.rescheduleDelaySeconds(3)).isEqualTo(3);
+  }
+
+  @Test
+  public void exponentialBackoffIsCapped() {
+    Config cfg = new Config();
+    cfg.setString("remote", "mirror", "retryBackoff", "exponential");
+    cfg.setInt("remote", "mirror", "replicationRetryMaxDelay", 10);
+    RetryPolicy policy = RetryPolicy.fromConfig(cfg, "mirror", 1);
+
+    assertThat(policy.retryDelaySeconds(1, 0)).isEqualTo(60);
+    assertThat(policy.retryDelaySeconds(2, 60)).isEqualTo(120);
+    assertThat(policy.retryDelaySeconds(3, 120)).isEqualTo(240);
+    assertThat(policy.retryDelaySeconds(4, 240)).isEqualTo(480);
+    assertThat(policy.retryDelaySeconds(5, 480)).isEqualTo(600);
+    assertThat(policy.retryDelaySeconds(1000, 600)).isEqualTo(600);
+  }
+
+  @Test
+  public void fullJitterIsBetweenZeroAndBackoff() {
+    RetryPolicy policy = new RetryPolicy(60, 600, Backoff.EXPONENTIAL, Jitter.FULL);
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(policy.retryDelaySeconds(3, 0, random)).isIn(range(0, 240));
+    }
+  }
+
+  @Test
+  public void decorrelatedJitterGrowsFromPreviousDelay() {
+    RetryPolicy policy = new RetryPolicy(60, 600, Backoff.FIXED, Jitter.DECORRELATED);
+
+    long previous = 0;
+    for (int i = 1; i < 1000; i++) {
+      long delay = policy.retryDelaySeconds(i, previous, random);
+      assertThat(delay).isIn(range(60, Math.min(600, 3 * Math.max(60, previous))));
+      previous = delay;
+    }
+  }
+
+  @Test
+  public void rescheduleDelayWithJitterIsAtMostDoubled() {
+    RetryPolicy policy = new RetryPolicy(60, 600, Backoff.FIXED, Jitter.FULL);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(policy.rescheduleDelaySeconds(3)).isIn(range(3, 6));
+    }
+  }
+
+  private static Range<Long> range(long min, long max) {
+    return Range.closed(min, max);
+  }
+}
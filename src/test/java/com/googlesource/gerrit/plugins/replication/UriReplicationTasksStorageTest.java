@@ -0,0 +1,167 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UriReplicationTasksStorageTest extends ReplicationTasksStorageTest {
+  private static final ReplicateRefUpdate REF_UPDATE_B =
+      ReplicateRefUpdate.create(PROJECT, "refB", URISH, REMOTE);
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    storage = new UriReplicationTasksStorage(storageSite);
+  }
+
+  @Test
+  @Override
+  public void instancesOfTheSameStorageHaveTheSameElements() throws Exception {
+    ReplicationTasksStorage persistedView = new UriReplicationTasksStorage(storageSite);
+
+    storage.create(REF_UPDATE);
+    assertThatStream(persistedView.streamWaiting()).containsExactly(REF_UPDATE);
+
+    storage.start(uriUpdates);
+    assertThatStream(persistedView.streamWaiting()).isEmpty();
+    assertThatStream(persistedView.streamRunning()).containsExactly(REF_UPDATE);
+
+    storage.finish(uriUpdates);
+    assertNoIncompleteTasks(persistedView);
+  }
+
+  @Test
+  public void refsOfSameUriShareOneRecord() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.create(REF_UPDATE_B);
+    storage.create(REF_UPDATE);
+
+    assertThat(records("waiting")).isEqualTo(1);
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, REF_UPDATE_B);
+  }
+
+  @Test
+  public void refAlreadyWaitingIsNotAppendedAgain() throws Exception {
+    storage.create(REF_UPDATE);
+    long size = Files.size(waitingRecord());
+
+    storage.create(REF_UPDATE);
+    assertThat(Files.size(waitingRecord())).isEqualTo(size);
+  }
+
+  @Test
+  public void refPartiallyAppendedBeforeCrashIsNotGluedToNextRef() throws Exception {
+    storage.create(REF_UPDATE);
+    Files.write(waitingRecord(), "refs/heads/ma".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+    storage = new UriReplicationTasksStorage(storageSite);
+    storage.create(REF_UPDATE_B);
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, REF_UPDATE_B);
+  }
+
+  @Test
+  public void wholePushIsStartedAndFinished() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.create(REF_UPDATE_B);
+    UriUpdates push = push(REF, REF_UPDATE_B.ref());
+
+    assertThat(storage.start(push)).containsExactly(REF, REF_UPDATE_B.ref());
+    assertThat(records("waiting")).isEqualTo(0);
+    assertThat(records("running")).isEqualTo(1);
+
+    storage.finish(push);
+    assertNoIncompleteTasks(storage);
+  }
+
+  @Test
+  public void refsCreatedWhilePushIsRunningStayWaiting() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+    storage.create(REF_UPDATE_B);
+
+    storage.reset(uriUpdates);
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, REF_UPDATE_B);
+    assertThatStream(storage.streamRunning()).isEmpty();
+    assertThat(records("waiting")).isEqualTo(1);
+  }
+
+  @Test
+  public void onlyRefsOfThePushAreStarted() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.create(REF_UPDATE_B);
+
+    assertThat(storage.start(uriUpdates)).containsExactly(REF);
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE_B);
+    assertThatStream(storage.streamRunning()).containsExactly(REF_UPDATE);
+  }
+
+  @Test
+  public void runningPushIsMergedIntoWaitingOnRecovery() throws Exception {
+    storage.create(REF_UPDATE);
+    storage.start(uriUpdates);
+    storage.create(REF_UPDATE_B);
+
+    storage.recoverAll();
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, REF_UPDATE_B);
+    assertThatStream(storage.streamRunning()).isEmpty();
+  }
+
+  @Test
+  public void legacyTasksAreImportedOnRecovery() throws Exception {
+    ReplicationTasksStorage legacy = new ReplicationTasksStorage(storageSite);
+    legacy.create(REF_UPDATE);
+    legacy.create(REF_UPDATE_B);
+    legacy.start(TestUriUpdates.create(REF_UPDATE_B));
+
+    storage.recoverAll();
+    assertThatStream(storage.streamWaiting()).containsExactly(REF_UPDATE, REF_UPDATE_B);
+    assertTrue(storage.isWaiting(uriUpdates));
+    assertNoIncompleteTasks(legacy);
+  }
+
+  private UriUpdates push(String... refs) {
+    return TestUriUpdates.create(
+        Project.nameKey(PROJECT), URISH, REMOTE, ImmutableSet.copyOf(refs));
+  }
+
+  private Path waitingRecord() {
+    return ReplicationTasksStorage.shard(
+        storageSite.resolve("uri").resolve("waiting"),
+        UriReplicationTasksStorage.pushKey(PROJECT, URISH.toASCIIString(), REMOTE));
+  }
+
+  private long records(String state) throws Exception {
+    Path dir = storageSite.resolve("uri").resolve(state);
+    if (!Files.exists(dir)) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile).count();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.googlesource.gerrit.plugins.replication.ReplicationTasksStorage.ReplicateRefUpdate;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WaitingTasksWatcherTest {
+  private static final String PROJECT = "myProject";
+  private static final String REMOTE = "myDest";
+
+  private FileSystem fileSystem;
+  private ReplicationTasksStorage otherNode;
+  private WaitingTasksWatcher watcher;
+  private URIish uri;
+  private final List<ReplicateRefUpdate> scheduled = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    otherNode = new ReplicationTasksStorage(fileSystem.getPath("replication_site"));
+    ReplicationTasksStorage storage =
+        new ReplicationTasksStorage(fileSystem.getPath("replication_site"));
+    watcher = storage.newWaitingTasksWatcher(scheduled::add).get();
+    uri = new URIish("http://example.com/" + PROJECT + ".git");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fileSystem.close();
+  }
+
+  @Test
+  public void unsharedStorageIsNotWatched() throws Exception {
+    ReplicationTasksStorage unshared =
+        new ReplicationTasksStorage(fileSystem.getPath("replication_site"), false);
+
+    assertThat(unshared.newWaitingTasksWatcher(scheduled::add).isPresent()).isFalse();
+  }
+
+  @Test
+  public void tasksWaitingAtStartAreNotScheduled() throws Exception {
+    otherNode.create(update("refs/heads/master"));
+
+    watcher.poll(false);
+    watcher.poll(true);
+
+    assertThat(scheduled).isEmpty();
+  }
+
+  @Test
+  public void createdTasksAreScheduledOnce() throws Exception {
+    otherNode.create(update("refs/heads/master"));
+    watcher.poll(false);
+
+    ReplicateRefUpdate created = update("refs/heads/stable");
+    otherNode.create(created);
+    watcher.poll(true);
+    watcher.poll(true);
+
+    assertThat(scheduled).containsExactly(created);
+  }
+
+  @Test
+  public void tasksResetByOtherNodeAreScheduledAgain() throws Exception {
+    watcher.poll(false);
+    ReplicateRefUpdate created = update("refs/heads/master");
+    otherNode.create(created);
+    watcher.poll(true);
+
+    TestUriUpdates uriUpdates = TestUriUpdates.create(created);
+    otherNode.start(uriUpdates);
+    watcher.poll(true);
+    otherNode.reset(uriUpdates);
+    watcher.poll(true);
+
+    assertThat(scheduled).containsExactly(created, created);
+  }
+
+  @Test
+  public void tasksMissedByIncrementalPollAreFoundByRescan() throws Exception {
+    otherNode.create(update("refs/heads/master"));
+    backdateWaitingDirs();
+    watcher.poll(false);
+
+    ReplicateRefUpdate created = update("refs/heads/master");
+    otherNode.start(TestUriUpdates.create(created));
+    otherNode.reset(TestUriUpdates.create(created));
+    backdateWaitingDirs();
+    watcher.poll(true);
+    assertThat(scheduled).isEmpty();
+
+    watcher.rescan();
+    assertThat(scheduled).containsExactly(created);
+  }
+
+  @Test
+  public void stoppingShutsTheExecutorDown() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    watcher.start(executor, WaitingTasksWatcher.Mode.POLL, 10);
+
+    watcher.stop();
+
+    assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+  }
+
+  /** Gives the waiting directories the same old modification time, hiding their changes. */
+  private void backdateWaitingDirs() throws Exception {
+    FileTime old = FileTime.fromMillis(0);
+    try (Stream<Path> dirs = Files.walk(fileSystem.getPath("replication_site", "waiting"))) {
+      for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+        Files.setLastModifiedTime(dir, old);
+      }
+    }
+  }
+
+  private ReplicateRefUpdate update(String ref) {
+    return ReplicateRefUpdate.create(PROJECT, ref, uri, REMOTE);
+  }
+}